@@ -0,0 +1,108 @@
+package com.vivareal.logger.appender;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.helpers.CountingQuietWriter;
+import org.apache.log4j.helpers.OnlyOnceErrorHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link FileChannelWriter} with the writer chain
+ * <code>FileAppender</code> builds (<code>OutputStreamWriter</code>, a
+ * <code>BufferedWriter</code> with <b>BufferedIO</b>, and
+ * <code>CountingQuietWriter</code>), writing one layout line per call to
+ * <code>/dev/null</code>, which isolates the encoding and buffering, or to a
+ * temporary file. Without <b>BufferedIO</b> every line is flushed, as with
+ * <b>ImmediateFlush</b>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileChannelWriterBenchmark {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final String LINE = "2014-06-11 17:42:05,123 INFO  "
+	    + "[http-nio-8080-exec-7] com.example.service.Orders - "
+	    + "Order 42 placed by customer 12345\n";
+
+    @Param({ "null", "file" })
+    String target;
+
+    @Param({ "true", "false" })
+    boolean bufferedIO;
+
+    private File file;
+
+    private CountingQuietWriter quietWriter;
+
+    private FileChannelWriter channelWriter;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+	file = "null".equals(target) ? new File("/dev/null") : File
+		.createTempFile("benchmark", ".log");
+
+	Writer writer = new OutputStreamWriter(new FileOutputStream(file, true),
+		UTF_8);
+	if (bufferedIO) {
+	    writer = new BufferedWriter(writer, BUFFER_SIZE);
+	}
+	quietWriter = new CountingQuietWriter(writer,
+		new OnlyOnceErrorHandler());
+
+	channelWriter = new FileChannelWriter(new FileOutputStream(file, true)
+		.getChannel(), UTF_8, bufferedIO ? BUFFER_SIZE
+		: FileChannelWriter.DEFAULT_BUFFER_SIZE);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+	quietWriter.close();
+	channelWriter.close();
+	if (!"null".equals(target)) {
+	    file.delete();
+	}
+    }
+
+    @Benchmark
+    public long writerChain() {
+	quietWriter.write(LINE);
+	if (!bufferedIO) {
+	    quietWriter.flush();
+	}
+	return quietWriter.getCount();
+    }
+
+    @Benchmark
+    public long fileChannelWriter() throws IOException {
+	channelWriter.write(LINE);
+	if (!bufferedIO) {
+	    channelWriter.flush();
+	}
+	return channelWriter.getCount();
+    }
+}
@@ -0,0 +1,137 @@
+package com.vivareal.logger.appender;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.vivareal.logger.LogstashEvent;
+
+/**
+ * Compares {@link LogstashJsonEncoder} with the data binding path it
+ * replaced, which copied every event into a {@link LogstashEvent} and
+ * serialized it with a cached {@link ObjectWriter}. Run with
+ * <code>-prof gc</code> to compare the allocation per event too.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogstashJsonEncoderBenchmark {
+    private static final int EVENTS = 16;
+
+    @Param({ "false", "true" })
+    boolean throwable;
+
+    private LoggingEvent[] events;
+
+    private String[] timestamps;
+
+    private int next;
+
+    private LogstashJsonEncoder encoder;
+
+    private ObjectWriter writer;
+
+    private ByteArrayOutputStream bytes;
+
+    @Setup
+    public void setUp() throws IOException {
+	events = new LoggingEvent[EVENTS];
+	timestamps = new String[EVENTS];
+	LogstashTimestampFormat timestampFormat = new LogstashTimestampFormat();
+	long now = System.currentTimeMillis();
+	for (int i = 0; i < EVENTS; i++) {
+	    events[i] = new LoggingEvent(Logger.class.getName(),
+		    Logger.getLogger("com.example.service.Orders"), now + i,
+		    Level.INFO, "Order " + i
+			    + " placed by customer 12345 with 3 items",
+		    "http-nio-8080-exec-" + i,
+		    throwable ? new ThrowableInformation(
+			    new IllegalStateException("boom " + i)) : null,
+		    "req-1", new LocationInfo(null, null), null);
+	    // both paths find the rendered throwable on the event
+	    events[i].getThrowableStrRep();
+	    // the old path cached the formatted minute
+	    timestamps[i] = new String(timestampFormat.format(now + i), 0,
+		    LogstashTimestampFormat.LENGTH, "US-ASCII");
+	}
+
+	encoder = new LogstashJsonEncoder("udp", new ByteBufferOutputStream(
+		UDPAppender.INITIAL_BUFFER_SIZE, true));
+	encoder.setApplication("app");
+	encoder.setEnvironment("prod");
+	encoder.setStackTraceDeduplication(0, 0);
+	encoder.prepare();
+
+	writer = new ObjectMapper().writerWithType(LogstashEvent.class);
+	bytes = new ByteArrayOutputStream(UDPAppender.INITIAL_BUFFER_SIZE);
+    }
+
+    @Benchmark
+    public int encoder() throws IOException {
+	LoggingEvent event = events[next++ & (EVENTS - 1)];
+	ByteBufferOutputStream out = encoder.getOutput();
+	out.reset();
+	encoder.encode(event);
+	return out.size();
+    }
+
+    @Benchmark
+    public int objectWriter() throws IOException {
+	int i = next++ & (EVENTS - 1);
+	LoggingEvent event = events[i];
+	LogstashEvent logstashEvent = new LogstashEvent();
+	logstashEvent.setApplication("app");
+	logstashEvent.setLoggerName(event.getLoggerName());
+	logstashEvent.setNdc(event.getNDC());
+	logstashEvent.setPath(event.getLoggerName());
+	logstashEvent.setPriority(event.getLevel().toString());
+	logstashEvent.setThread(event.getThreadName());
+	logstashEvent.setTimestamp(timestamps[i]);
+	logstashEvent.setEnvironment("prod");
+	LocationInfo locationInfo = event.getLocationInformation();
+	logstashEvent.setClassName(locationInfo.getClassName());
+	logstashEvent.setFile(locationInfo.getFileName());
+	logstashEvent.setMethod(locationInfo.getMethodName());
+	String message = event.getRenderedMessage().trim();
+	if (message.length() > LogstashJsonEncoder.MAX_MESSAGE_SIZE) {
+	    message = message.substring(0,
+		    LogstashJsonEncoder.MAX_MESSAGE_SIZE - 3) + "...";
+	}
+	logstashEvent.setMessage(message);
+	if (event.getThrowableInformation() != null) {
+	    String stackTrace = StringUtils.join(event.getThrowableStrRep(),
+		    "\n");
+	    if (stackTrace.length() > LogstashJsonEncoder.MAX_STACK_TRACE_SIZE) {
+		stackTrace = stackTrace.substring(0,
+			LogstashJsonEncoder.MAX_STACK_TRACE_SIZE - 3) + "...";
+	    }
+	    logstashEvent.setStackTrace(stackTrace);
+	}
+	bytes.reset();
+	writer.writeValue(bytes, logstashEvent);
+	return bytes.size();
+    }
+}
@@ -0,0 +1,65 @@
+package com.vivareal.logger.appender;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link LogstashTimestampFormat} with a {@link SimpleDateFormat} of
+ * the same pattern. Each call formats a timestamp <code>step</code>
+ * milliseconds after the previous one, so the cached second and minute
+ * change as they would at that event rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogstashTimestampFormatBenchmark {
+    @Param({ "1", "1009" })
+    long step;
+
+    private long timeStamp;
+
+    private LogstashTimestampFormat format;
+
+    private DateFormat dateFormat;
+
+    private final Date date = new Date();
+
+    @Setup
+    public void setUp() {
+	timeStamp = System.currentTimeMillis();
+	format = new LogstashTimestampFormat();
+	dateFormat = new SimpleDateFormat(LogstashTimestampFormat.PATTERN);
+	dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    @Benchmark
+    public byte[] logstashTimestampFormat() {
+	timeStamp += step;
+	return format.format(timeStamp);
+    }
+
+    @Benchmark
+    public String simpleDateFormat() {
+	timeStamp += step;
+	date.setTime(timeStamp);
+	return dateFormat.format(date);
+    }
+}
@@ -1,5 +1,10 @@
 package com.vivareal.logger;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonAnyGetter;
+import com.fasterxml.jackson.annotation.JsonAnySetter;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.annotation.JsonProperty;
@@ -29,6 +34,12 @@ public class LogstashEvent {
     
     @JsonProperty("stack_trace")
     private String stackTrace;
+
+    @JsonProperty("stack_fingerprint")
+    private String stackFingerprint;
+
+    @JsonProperty("stack_repeat")
+    private Integer stackRepeat;
     
     @JsonProperty("NDC")
     private String ndc;
@@ -42,6 +53,10 @@ public class LogstashEvent {
     
     private String environment;
 
+    private String host;
+
+    private Map<String, String> properties = new LinkedHashMap<String, String>();
+
     public String getMessage() {
         return message;
     }
@@ -130,6 +145,22 @@ public class LogstashEvent {
         this.stackTrace = stackTrace;
     }
 
+    public String getStackFingerprint() {
+        return stackFingerprint;
+    }
+
+    public void setStackFingerprint(String stackFingerprint) {
+        this.stackFingerprint = stackFingerprint;
+    }
+
+    public Integer getStackRepeat() {
+        return stackRepeat;
+    }
+
+    public void setStackRepeat(Integer stackRepeat) {
+        this.stackRepeat = stackRepeat;
+    }
+
     public String getClassName() {
         return className;
     }
@@ -161,4 +192,25 @@ public class LogstashEvent {
     public void setEnvironment(String environment) {
         this.environment = environment;
     }
-}
\ No newline at end of file
+
+    public String getHost() {
+        return host;
+    }
+
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    /**
+     * MDC entries and event properties, serialized as top-level fields.
+     */
+    @JsonAnyGetter
+    public Map<String, String> getProperties() {
+        return properties;
+    }
+
+    @JsonAnySetter
+    public void setProperty(String name, String value) {
+        properties.put(name, value);
+    }
+}
@@ -34,6 +34,7 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.MDC;
 import org.apache.log4j.spi.AppenderAttachable;
 import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
 
 /**
  * The AsyncAppender lets users log events asynchronously.
@@ -73,11 +74,30 @@ public class AsyncAppender extends AppenderSkeleton implements AppenderAttachabl
      */
     private final Map discardMap = new HashMap();
 
+    /**
+     * Route mask of each buffered event, indexed like the buffer. Protected by
+     * the buffer monitor.
+     */
+    private long[] routeMasks = new long[DEFAULT_BUFFER_SIZE];
+
     /**
      * Buffer size.
      */
     private int bufferSize = DEFAULT_BUFFER_SIZE;
 
+    /**
+     * Routing rules selecting which attached appenders receive an event.
+     * Changed under the buffer monitor, along with the masks of the buffered
+     * events.
+     */
+    private volatile RoutingRule[] routes = new RoutingRule[0];
+
+    /**
+     * Rule bits of each routed appender, computed once from
+     * <code>routes</code>.
+     */
+    private Map<String, Long> routeBits = new HashMap<String, Long>();
+
     /** Nested appenders. */
     CustomAppenderAttachable aai;
 
@@ -168,7 +188,7 @@ public class AsyncAppender extends AppenderSkeleton implements AppenderAttachabl
 	    event.getLocationInformation();
 	}
 	event.getRenderedMessage();
-	event.getThrowableStrRep();
+	// the throwable is rendered by the dispatcher, through the cache
 
 	synchronized (buffer) {
 	    while (true) {
@@ -176,6 +196,9 @@ public class AsyncAppender extends AppenderSkeleton implements AppenderAttachabl
 
 		if (previousSize < bufferSize) {
 		    buffer.add(event);
+		    // against the rules the dispatcher will decode it with
+		    routeMasks[previousSize] = RoutingRule.computeMask(routes,
+			    event);
 
 		    if (previousSize == 0) {
 			buffer.notifyAll();
@@ -395,10 +418,52 @@ public class AsyncAppender extends AppenderSkeleton implements AppenderAttachabl
 	    // don't let size be zero.
 	    //
 	    bufferSize = (size < 1) ? 1 : size;
+	    if (routeMasks.length < bufferSize) {
+		long[] masks = new long[bufferSize];
+		System.arraycopy(routeMasks, 0, masks, 0, routeMasks.length);
+		routeMasks = masks;
+	    }
 	    buffer.notifyAll();
 	}
     }
 
+    /**
+     * The <b>Routes</b> option takes a semicolon separated list of routing
+     * rules, each one in the form
+     * <code>appenderName=MIN[-MAX][@loggerPrefix,...]</code>. An attached
+     * appender named by at least one rule only receives the events matched by
+     * its rules; appenders not named by any rule receive every event.
+     * <p/>
+     * This lets a single <code>AsyncAppender</code> (one buffer and one
+     * dispatcher thread) feed sinks with different thresholds, e.g.
+     * <code>file=DEBUG; logstash=WARN</code>.
+     * </p>
+     *
+     * @param value
+     *            routing rules, may be null or empty to disable routing.
+     */
+    public void setRoutes(final String value) {
+	RoutingRule[] rules = RoutingRule.parse(value);
+	Map<String, Long> bits = RoutingRule.appenderBits(rules);
+	synchronized (buffer) {
+	    routes = rules;
+	    routeBits = bits;
+	    for (int i = 0; i < buffer.size(); i++) {
+		routeMasks[i] = RoutingRule.computeMask(rules,
+			(LoggingEvent) buffer.get(i));
+	    }
+	}
+    }
+
+    /**
+     * Gets the routing rules.
+     *
+     * @return the current value of the <b>Routes</b> option.
+     */
+    public String getRoutes() {
+	return StringUtils.join(routes, "; ");
+    }
+
     /**
      * Gets the current buffer size.
      * 
@@ -519,6 +584,8 @@ public class AsyncAppender extends AppenderSkeleton implements AppenderAttachabl
 	    try {
 		while (isActive) {
 		    LoggingEvent[] events = null;
+		    long[] masks = null;
+		    Map<String, Long> bits = null;
 
 		    synchronized (buffer) {
 			int bufferSize = buffer.size();
@@ -531,16 +598,25 @@ public class AsyncAppender extends AppenderSkeleton implements AppenderAttachabl
 			}
 
 			if (bufferSize > 0) {
+			    // the masks only mean something with these rules
+			    RoutingRule[] rules = parent.routes;
+			    bits = parent.routeBits;
 			    events = new LoggingEvent[bufferSize
 				    + discardMap.size()];
 			    buffer.toArray(events);
+			    masks = new long[events.length];
+			    System.arraycopy(parent.routeMasks, 0, masks, 0,
+				    bufferSize);
 
 			    int index = bufferSize;
 
 			    for (Iterator iter = discardMap.values().iterator(); iter
 				    .hasNext();) {
-				events[index++] = ((DiscardSummary) iter.next())
+				events[index] = ((DiscardSummary) iter.next())
 					.createEvent();
+				masks[index] = RoutingRule.computeMask(rules,
+					events[index]);
+				index++;
 			    }
 
 			    buffer.clear();
@@ -552,8 +628,14 @@ public class AsyncAppender extends AppenderSkeleton implements AppenderAttachabl
 
 		    if (events != null) {
 			for (int i = 0; i < events.length; i++) {
+			    ThrowableInformation info = events[i]
+				    .getThrowableInformation();
+			    if (info != null) {
+				ThrowableRenderCache.render(info);
+			    }
 			    synchronized (appenders) {
-				appenders.appendLoopOnAppenders(events[i]);
+				appenders.appendLoopOnAppenders(events[i],
+					masks[i], bits);
 			    }
 			}
 		    }
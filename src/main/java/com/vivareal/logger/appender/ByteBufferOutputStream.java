@@ -0,0 +1,96 @@
+package com.vivareal.logger.appender;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link OutputStream} that writes into a reusable {@link ByteBuffer}. The
+ * buffer grows (keeping its heap or direct nature) when it runs out of room,
+ * so in steady state no allocation happens. Not thread safe.
+ */
+class ByteBufferOutputStream extends OutputStream {
+    private final boolean direct;
+
+    private ByteBuffer buffer;
+
+    ByteBufferOutputStream(int capacity, boolean direct) {
+	this.direct = direct;
+	this.buffer = allocate(capacity);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+	return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer
+		.allocate(capacity);
+    }
+
+    private void ensureRemaining(int len) {
+	if (buffer.remaining() >= len) {
+	    return;
+	}
+
+	int capacity = Math.max(buffer.capacity() * 2, buffer.position() + len);
+	ByteBuffer grown = allocate(capacity);
+	buffer.flip();
+	grown.put(buffer);
+	buffer = grown;
+    }
+
+    public void write(int b) {
+	ensureRemaining(1);
+	buffer.put((byte) b);
+    }
+
+    public void write(byte[] b, int off, int len) {
+	ensureRemaining(len);
+	buffer.put(b, off, len);
+    }
+
+    /**
+     * Returns the backing buffer, positioned after the last written byte. The
+     * buffer instance changes when it grows, so it must not be kept across
+     * writes.
+     */
+    ByteBuffer getBuffer() {
+	return buffer;
+    }
+
+    /**
+     * Number of bytes written since the last {@link #reset()}.
+     */
+    int size() {
+	return buffer.position();
+    }
+
+    /**
+     * Discards everything written after the first <code>size</code> bytes.
+     */
+    void setSize(int size) {
+	buffer.limit(buffer.capacity());
+	buffer.position(size);
+    }
+
+    void reset() {
+	buffer.clear();
+    }
+
+    /**
+     * Positions and limits the backing buffer on the bytes in
+     * <code>[from, to)</code> so they can be read, e.g. by a channel. Call
+     * {@link #setSize(int)} afterwards to resume writing.
+     */
+    ByteBuffer select(int from, int to) {
+	buffer.limit(to);
+	buffer.position(from);
+	return buffer;
+    }
+
+    /**
+     * Drops the first <code>length</code> bytes, moving the remaining ones to
+     * the start of the buffer.
+     */
+    void discard(int length) {
+	buffer.flip();
+	buffer.position(length);
+	buffer.compact();
+    }
+}
@@ -0,0 +1,174 @@
+package com.vivareal.logger.appender;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * A clock read by the appenders instead of calling
+ * {@link System#currentTimeMillis()} for every event.
+ *
+ * <p>
+ * The {@link #shared() shared} clock is advanced by a daemon thread every
+ * {@link #TICK} milliseconds, which also notifies the listeners whose
+ * boundary has been reached, so an appender can be told when to roll over
+ * instead of comparing the time on every event. Clocks created with the
+ * default constructor do not tick and are moved with {@link #setTime(long)},
+ * which gives tests control over rollovers.
+ *
+ * <p>
+ * The clock carries no formatted time: the encoders format the timestamp of
+ * each event, which is not the current time, with their own cached
+ * {@link LogstashTimestampFormat}.
+ */
+class CoarseClock {
+    /**
+     * Interval in milliseconds between two ticks of the shared clock.
+     */
+    static final long TICK = 1;
+
+    /**
+     * Told by the clock that the time it asked for has been reached.
+     */
+    interface BoundaryListener {
+	/**
+	 * Called, from the thread advancing the clock, once it reaches the
+	 * time the listener was registered for. Must not block.
+	 */
+	void boundaryReached(long now);
+    }
+
+    private static CoarseClock shared;
+
+    private final List<Boundary> boundaries = new ArrayList<Boundary>();
+
+    private volatile long now;
+
+    Ticker ticker;
+
+    /**
+     * Creates a clock that stays at the current time until
+     * {@link #setTime(long)} is called.
+     */
+    CoarseClock() {
+	advance(System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the clock shared by the appenders, starting its ticker on first
+     * use.
+     */
+    static synchronized CoarseClock shared() {
+	if (shared == null) {
+	    shared = new CoarseClock();
+	    shared.ticker = shared.new Ticker();
+	    shared.ticker.start();
+	}
+	return shared;
+    }
+
+    /**
+     * Returns the time of the last tick, at most a few milliseconds behind
+     * {@link System#currentTimeMillis()}.
+     */
+    long currentTimeMillis() {
+	return now;
+    }
+
+    /**
+     * Moves the clock to <code>time</code>, notifying the listeners whose
+     * boundary has been reached before returning.
+     */
+    void setTime(long time) {
+	advance(time);
+    }
+
+    /**
+     * Registers <code>listener</code> to be notified once, when the clock
+     * reaches <code>time</code>. A listener registered for a time already
+     * reached is notified on the next tick. Registering a listener again
+     * replaces its previous boundary.
+     */
+    void notifyAt(long time, BoundaryListener listener) {
+	synchronized (boundaries) {
+	    removeBoundary(listener);
+	    boundaries.add(new Boundary(time, listener));
+	}
+    }
+
+    /**
+     * Discards the boundary <code>listener</code> was registered for, if it
+     * has not been reached yet.
+     */
+    void cancel(BoundaryListener listener) {
+	synchronized (boundaries) {
+	    removeBoundary(listener);
+	}
+    }
+
+    private void removeBoundary(BoundaryListener listener) {
+	for (int i = boundaries.size() - 1; i >= 0; i--) {
+	    if (boundaries.get(i).listener == listener) {
+		boundaries.remove(i);
+	    }
+	}
+    }
+
+    private synchronized void advance(long time) {
+	now = time;
+	List<BoundaryListener> reached = null;
+	synchronized (boundaries) {
+	    for (int i = boundaries.size() - 1; i >= 0; i--) {
+		Boundary boundary = boundaries.get(i);
+		if (time >= boundary.time) {
+		    if (reached == null) {
+			reached = new ArrayList<BoundaryListener>();
+		    }
+		    reached.add(boundary.listener);
+		    boundaries.remove(i);
+		}
+	    }
+	}
+	if (reached != null) {
+	    for (int i = 0; i < reached.size(); i++) {
+		try {
+		    reached.get(i).boundaryReached(time);
+		} catch (RuntimeException e) {
+		    LogLog.error("Clock boundary listener failed.", e);
+		}
+	    }
+	}
+    }
+
+    private static class Boundary {
+	final long time;
+
+	final BoundaryListener listener;
+
+	Boundary(long time, BoundaryListener listener) {
+	    this.time = time;
+	    this.listener = listener;
+	}
+    }
+
+    class Ticker extends Thread {
+	boolean interrupted = false;
+
+	Ticker() {
+	    super("CoarseClock-Ticker");
+	    setDaemon(true);
+	}
+
+	public void run() {
+	    while (!interrupted) {
+		try {
+		    sleep(TICK);
+		} catch (InterruptedException e) {
+		    interrupted = true;
+		}
+		advance(System.currentTimeMillis());
+	    }
+	}
+    }
+}
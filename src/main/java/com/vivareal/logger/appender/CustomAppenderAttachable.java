@@ -16,6 +16,7 @@
 package com.vivareal.logger.appender;
 
 import java.util.Enumeration;
+import java.util.Map;
 import java.util.Vector;
 
 import org.apache.log4j.Appender;
@@ -76,6 +77,44 @@ public class CustomAppenderAttachable implements AppenderAttachable {
 	return size;
     }
 
+    /**
+     * Call the <code>doAppend</code> method on the attached appenders selected
+     * by <code>routeMask</code>, given the rule bits of each routed appender
+     * from {@link RoutingRule#appenderBits}. Appenders missing from
+     * <code>appenderBits</code> receive every event.
+     */
+    public int appendLoopOnAppenders(LoggingEvent event, long routeMask,
+	    Map<String, Long> appenderBits) {
+	if (appenderBits.isEmpty()) {
+	    return appendLoopOnAppenders(event);
+	}
+
+	int size = 0;
+	Appender appender;
+
+	if (appenderList != null) {
+	    size = appenderList.size();
+
+	    for (int i = 0; i < size; i++) {
+		appender = (Appender) appenderList.elementAt(i);
+		Long bits = appenderBits.get(appender.getName());
+		if (bits != null && (bits.longValue() & routeMask) == 0) {
+		    continue;
+		}
+
+		try {
+		    appender.doAppend(event);
+		} catch(Exception e) {
+		    // same as above, never let a failing appender reach the
+		    // application or the dispatcher thread
+		    org.apache.log4j.helpers.LogLog.error(String.format("There was an error when trying to log event using appender %s", appender.getClass().getName()), e);
+		}
+	    }
+	}
+
+	return size;
+    }
+
     /**
      * Get all attached appenders as an Enumeration. If there are no attached
      * appenders <code>null</code> is returned.
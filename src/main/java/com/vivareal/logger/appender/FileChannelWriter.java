@@ -0,0 +1,155 @@
+package com.vivareal.logger.appender;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writes characters to a {@link FileChannel}. Characters are gathered in a
+ * buffer and encoded in bulk, when it is full or flushed, with a reused
+ * {@link CharsetEncoder} into a byte buffer that is then written to the
+ * channel.
+ *
+ * <p>
+ * Replaces the <code>OutputStreamWriter</code>, <code>BufferedWriter</code>
+ * and <code>CountingQuietWriter</code> chain of the file appenders with a
+ * single layer that also keeps the size of the file. Both buffers are heap
+ * buffers, as the encoders only take their array fast path between those.
+ * Instances are not thread safe: they are used under the lock of the
+ * appender that owns them.
+ */
+class FileChannelWriter extends Writer {
+    /**
+     * Size of the buffers when the appender does not buffer its output.
+     */
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+
+    private final CharsetEncoder encoder;
+
+    private final char[] chars;
+
+    private final CharBuffer charBuffer;
+
+    private final ByteBuffer buffer;
+
+    private long written;
+
+    FileChannelWriter(FileChannel channel, Charset charset, int bufferSize) {
+	this.channel = channel;
+	this.encoder = charset.newEncoder()
+		.onMalformedInput(CodingErrorAction.REPLACE)
+		.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	this.chars = new char[Math.max(bufferSize, 2)];
+	this.charBuffer = CharBuffer.wrap(chars);
+	this.buffer = ByteBuffer.allocate(Math.max(bufferSize,
+		(int) Math.ceil(encoder.maxBytesPerChar())));
+    }
+
+    /**
+     * Returns the size of the file, counting characters not encoded yet as
+     * one byte each.
+     */
+    long getCount() {
+	return written + buffer.position() + charBuffer.position();
+    }
+
+    /**
+     * Sets the number of bytes already in the file, when appending to it.
+     */
+    void setCount(long count) {
+	written = count - buffer.position() - charBuffer.position();
+    }
+
+    public void write(int c) throws IOException {
+	if (!charBuffer.hasRemaining()) {
+	    encodeChars(false);
+	}
+	charBuffer.put((char) c);
+    }
+
+    public void write(char[] cbuf, int off, int len) throws IOException {
+	while (len > 0) {
+	    if (!charBuffer.hasRemaining()) {
+		encodeChars(false);
+	    }
+	    int n = Math.min(len, charBuffer.remaining());
+	    charBuffer.put(cbuf, off, n);
+	    off += n;
+	    len -= n;
+	}
+    }
+
+    public void write(String str, int off, int len) throws IOException {
+	while (len > 0) {
+	    if (!charBuffer.hasRemaining()) {
+		encodeChars(false);
+	    }
+	    int position = charBuffer.position();
+	    int n = Math.min(len, chars.length - position);
+	    str.getChars(off, off + n, chars, position);
+	    charBuffer.position(position + n);
+	    off += n;
+	    len -= n;
+	}
+    }
+
+    /**
+     * Encodes the gathered characters, keeping a trailing high surrogate
+     * until the rest of its pair is written.
+     */
+    private void encodeChars(boolean endOfInput) throws IOException {
+	charBuffer.flip();
+	while (encoder.encode(charBuffer, buffer, endOfInput).isOverflow()) {
+	    drain();
+	}
+	charBuffer.compact();
+    }
+
+    private void drain() throws IOException {
+	buffer.flip();
+	while (buffer.hasRemaining()) {
+	    written += channel.write(buffer);
+	}
+	buffer.clear();
+    }
+
+    /**
+     * Writes the gathered characters to the channel, without forcing them to
+     * the storage device.
+     */
+    public void flush() throws IOException {
+	encodeChars(false);
+	drain();
+    }
+
+    /**
+     * Writes the gathered characters to the channel and forces them, but not
+     * the file metadata, to the storage device.
+     */
+    void force() throws IOException {
+	flush();
+	channel.force(false);
+    }
+
+    public void close() throws IOException {
+	if (!channel.isOpen()) {
+	    return;
+	}
+	try {
+	    encodeChars(true);
+	    while (encoder.flush(buffer).isOverflow()) {
+		drain();
+	    }
+	    drain();
+	} finally {
+	    channel.close();
+	}
+    }
+}
@@ -0,0 +1,149 @@
+package com.vivareal.logger.appender;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reassembles payloads sent as GELF chunks by {@link UDPAppender}, so a
+ * simple in-process receiver (e.g. in a test) can read chunked events.
+ * 
+ * <p>
+ * Feed it every received datagram with {@link #add(ByteBuffer)}. Datagrams
+ * that are not chunks are returned as they are; chunks are kept until every
+ * chunk of their message arrived, at which point the whole payload is
+ * returned. Incomplete messages are dropped after <code>timeout</code>
+ * milliseconds or when more than <code>maxPending</code> messages are
+ * incomplete.
+ * 
+ * <p>
+ * Not thread safe.
+ */
+public class GelfChunkReassembler {
+    /**
+     * The default time (5 seconds, as in GELF) to wait for missing chunks.
+     */
+    public static final long DEFAULT_TIMEOUT = 5000;
+
+    public static final int DEFAULT_MAX_PENDING = 1024;
+
+    private final long timeout;
+
+    private final int maxPending;
+
+    private final Map<Long, Message> pending = new LinkedHashMap<Long, Message>();
+
+    public GelfChunkReassembler() {
+	this(DEFAULT_TIMEOUT, DEFAULT_MAX_PENDING);
+    }
+
+    public GelfChunkReassembler(long timeout, int maxPending) {
+	this.timeout = timeout;
+	this.maxPending = maxPending;
+    }
+
+    /**
+     * Adds a received datagram.
+     * 
+     * @return the complete payload, or null if chunks are still missing.
+     */
+    public byte[] add(ByteBuffer datagram) {
+	if (!isChunk(datagram)) {
+	    byte[] payload = new byte[datagram.remaining()];
+	    datagram.get(payload);
+	    return payload;
+	}
+
+	long now = System.currentTimeMillis();
+	expire(now);
+
+	datagram.get();
+	datagram.get();
+	Long messageId = Long.valueOf(datagram.getLong());
+	int sequence = datagram.get() & 0xff;
+	int count = datagram.get() & 0xff;
+	if (count == 0 || sequence >= count) {
+	    return null;
+	}
+
+	Message message = pending.get(messageId);
+	if (message == null) {
+	    message = new Message(count, now);
+	    pending.put(messageId, message);
+	}
+
+	byte[] chunk = new byte[datagram.remaining()];
+	datagram.get(chunk);
+	if (!message.add(sequence, chunk)) {
+	    return null;
+	}
+
+	pending.remove(messageId);
+	return message.assemble();
+    }
+
+    /**
+     * Number of messages still waiting for chunks.
+     */
+    public int getPendingCount() {
+	return pending.size();
+    }
+
+    private static boolean isChunk(ByteBuffer datagram) {
+	int position = datagram.position();
+	return datagram.remaining() >= GelfChunker.HEADER_SIZE
+		&& datagram.get(position) == GelfChunker.MAGIC_0
+		&& datagram.get(position + 1) == GelfChunker.MAGIC_1;
+    }
+
+    private void expire(long now) {
+	// messages are kept in arrival order, so the oldest come first
+	Iterator<Message> iter = pending.values().iterator();
+	while (iter.hasNext()) {
+	    Message message = iter.next();
+	    if (now - message.firstSeen >= timeout
+		    || pending.size() >= maxPending) {
+		iter.remove();
+	    } else {
+		break;
+	    }
+	}
+    }
+
+    private static final class Message {
+	private final byte[][] chunks;
+
+	private final long firstSeen;
+
+	private int received;
+
+	Message(int count, long firstSeen) {
+	    this.chunks = new byte[count][];
+	    this.firstSeen = firstSeen;
+	}
+
+	boolean add(int sequence, byte[] chunk) {
+	    if (sequence < chunks.length && chunks[sequence] == null) {
+		chunks[sequence] = chunk;
+		received++;
+	    }
+	    return received == chunks.length;
+	}
+
+	byte[] assemble() {
+	    int length = 0;
+	    for (int i = 0; i < chunks.length; i++) {
+		length += chunks[i].length;
+	    }
+
+	    byte[] payload = new byte[length];
+	    int offset = 0;
+	    for (int i = 0; i < chunks.length; i++) {
+		System.arraycopy(chunks[i], 0, payload, offset, chunks[i].length);
+		offset += chunks[i].length;
+	    }
+	    return payload;
+	}
+    }
+}
@@ -0,0 +1,77 @@
+package com.vivareal.logger.appender;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Random;
+
+/**
+ * Splits a payload too large for a single datagram into GELF chunks.
+ * 
+ * <p>
+ * Every chunk starts with the GELF chunk header: the magic bytes
+ * <code>0x1e 0x0f</code>, an 8 byte message id shared by all the chunks of a
+ * payload, the sequence number and the sequence count (one byte each). The
+ * receiver reassembles the payload once all the chunks arrived, see
+ * {@link GelfChunkReassembler}.
+ * 
+ * <p>
+ * Not thread safe.
+ */
+class GelfChunker {
+    static final byte MAGIC_0 = 0x1e;
+
+    static final byte MAGIC_1 = 0x0f;
+
+    static final int HEADER_SIZE = 12;
+
+    /**
+     * GELF receivers drop messages with more chunks than this.
+     */
+    static final int MAX_CHUNKS = 128;
+
+    private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+
+    private final ByteBuffer[] chunk = new ByteBuffer[2];
+
+    private long nextMessageId = new Random().nextLong();
+
+    /**
+     * Number of chunks needed for <code>length</code> bytes when each datagram
+     * carries at most <code>datagramSize</code> bytes.
+     */
+    static int chunkCount(int length, int datagramSize) {
+	int chunkPayload = datagramSize - HEADER_SIZE;
+	return (length + chunkPayload - 1) / chunkPayload;
+    }
+
+    /**
+     * Writes <code>payload</code> (from its position to its limit) as chunks
+     * of at most <code>datagramSize</code> bytes, header included.
+     */
+    void write(GatheringByteChannel channel, ByteBuffer payload,
+	    int datagramSize) throws IOException {
+	int count = chunkCount(payload.remaining(), datagramSize);
+	if (count > MAX_CHUNKS) {
+	    throw new IllegalArgumentException("Payload of "
+		    + payload.remaining() + " bytes needs more than "
+		    + MAX_CHUNKS + " chunks.");
+	}
+
+	long messageId = nextMessageId++;
+	int chunkPayload = datagramSize - HEADER_SIZE;
+	int end = payload.limit();
+	for (int i = 0; i < count; i++) {
+	    header.clear();
+	    header.put(MAGIC_0).put(MAGIC_1).putLong(messageId).put((byte) i)
+		    .put((byte) count);
+	    header.flip();
+
+	    payload.limit(Math.min(end, payload.position() + chunkPayload));
+	    chunk[0] = header;
+	    chunk[1] = payload;
+	    channel.write(chunk);
+	    payload.limit(end);
+	}
+    }
+}
@@ -0,0 +1,63 @@
+package com.vivareal.logger.appender;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Decodes the events of a payload sent by {@link UDPAppender}, in the text
+ * JSON or binary Smile <b>Format</b>, so a simple in-process receiver (e.g.
+ * in a test) can check what was sent.
+ * 
+ * <p>
+ * Each event is returned as a map from field name to value. The payload must
+ * be a whole one, i.e. reassembled with {@link GelfChunkReassembler} if sent
+ * in chunks and inflated if compressed.
+ * 
+ * <p>
+ * Thread safe.
+ */
+public class LogstashEventDecoder {
+    private final JsonFactory factory;
+
+    private final ObjectReader reader;
+
+    /**
+     * Creates a decoder for the <code>json</code> or <code>smile</code>
+     * format.
+     */
+    public LogstashEventDecoder(String format) {
+	ObjectMapper mapper = LogstashJsonEncoder.SMILE.equalsIgnoreCase(format) ? new ObjectMapper(
+		new SmileFactory()) : new ObjectMapper();
+	factory = mapper.getFactory();
+	reader = mapper.reader(Map.class);
+    }
+
+    /**
+     * Returns the events of the payload in <code>data[offset, offset +
+     * length)</code>: one, or several when packed as JSON lines.
+     */
+    public List<Map<String, Object>> decode(byte[] data, int offset, int length)
+	    throws IOException {
+	List<Map<String, Object>> events = new ArrayList<Map<String, Object>>();
+	// ObjectReader.readValues(byte[], int, int) reads past the length in
+	// this Jackson version
+	MappingIterator<Map<String, Object>> iterator = reader
+		.readValues(factory.createParser(data, offset, length));
+	while (iterator.hasNextValue()) {
+	    events.add(iterator.nextValue());
+	}
+	return events;
+    }
+
+    public List<Map<String, Object>> decode(byte[] data) throws IOException {
+	return decode(data, 0, data.length);
+    }
+}
@@ -0,0 +1,658 @@
+package com.vivareal.logger.appender;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.vivareal.logger.LogstashEvent;
+
+/**
+ * Encodes a {@link LoggingEvent} as Logstash JSON, with the same schema as
+ * {@link LogstashEvent}, straight into a {@link ByteBufferOutputStream}.
+ * 
+ * <p>
+ * The event is written field by field with a streaming {@link JsonGenerator}
+ * instead of being copied into a <code>LogstashEvent</code> and serialized
+ * through data binding. Field names are pre-encoded and the generator, the
+ * output buffer and the scratch buffers used for truncation are reused, so
+ * steady state encoding does not allocate.
+ * 
+ * <p>
+ * The fields that are the same for every event (<code>@version</code>,
+ * <code>type</code>, <code>application</code>, <code>environment</code> and
+ * <code>host</code>) are encoded once into a byte template that opens the
+ * object. Each event copies the template and then only encodes its own fields,
+ * each one preceded by its pre-encoded <code>,"name":</code> prefix.
+ * 
+ * <p>
+ * Events are encoded as UTF-8 within a byte budget (<b>maxEventSize</b>).
+ * <code>message</code> comes right after the fixed fields and
+ * <code>stack_trace</code> last, each cut, on a character boundary so the
+ * UTF-8 stays valid, to whatever is left of the budget and to its own byte
+ * limit. A truncated event ends with <code>"truncated":true</code>.
+ * 
+ * <p>
+ * When enabled, the MDC entries and properties of the event are written as
+ * fields of their own, after the message, with their value cut to
+ * <code>MAX_PROPERTY_SIZE</code> bytes and all of them to
+ * <code>MAX_PROPERTIES_SIZE</code>, so a large MDC can neither crowd out the
+ * message nor the stack trace. They are read through the event without
+ * copying them into a map, and the encoded names are cached per key.
+ * Properties named like one of the fixed fields are skipped.
+ * 
+ * <p>
+ * With the {@link #SMILE} format events are written as binary Smile objects
+ * instead, one root value with its own header per event, through the same
+ * generator calls except for the text template and raw prefixes. The byte
+ * budget is then only an upper bound, since Smile needs fewer bytes than
+ * JSON for every value.
+ * 
+ * <p>
+ * Events with a throwable carry its <code>stack_fingerprint</code> (see
+ * {@link StackTraceDeduplicator}). When de-duplication is on, repeats of a
+ * fingerprint within the window carry a <code>stack_repeat</code> count
+ * instead of the <code>stack_trace</code>.
+ * 
+ * <p>
+ * Instances are not thread safe; each appender owns its encoder and only uses
+ * it while holding the appender lock.
+ */
+class LogstashJsonEncoder {
+    /**
+     * Default maximum encoded bytes of the message value.
+     */
+    static final int MAX_MESSAGE_SIZE = 3072;
+
+    /**
+     * Default maximum encoded bytes of the stack trace value.
+     */
+    static final int MAX_STACK_TRACE_SIZE = 4096;
+
+    /**
+     * Default maximum encoded bytes of a whole event.
+     */
+    static final int DEFAULT_MAX_EVENT_SIZE = 8192;
+
+    /**
+     * Maximum encoded bytes of a property value.
+     */
+    static final int MAX_PROPERTY_SIZE = 1024;
+
+    /**
+     * Maximum encoded bytes of all the property fields of an event.
+     */
+    static final int MAX_PROPERTIES_SIZE = 2048;
+
+    /**
+     * Maximum number of property names whose encoding is cached.
+     */
+    private static final int MAX_CACHED_KEYS = 1024;
+
+    /**
+     * Text JSON, the format of the Logstash <code>json</code> and
+     * <code>json_lines</code> codecs.
+     */
+    static final String JSON = "json";
+
+    /**
+     * Binary JSON in the Smile format.
+     */
+    static final String SMILE = "smile";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    /**
+     * Every event is decoded on its own, so each one starts with its own
+     * header and names are not shared between events.
+     */
+    private static final SmileFactory SMILE_FACTORY = new SmileFactory()
+	    .disable(SmileGenerator.Feature.WRITE_HEADER)
+	    .disable(SmileGenerator.Feature.CHECK_SHARED_NAMES);
+
+    private static final Key MESSAGE = new Key("message");
+    private static final Key TIMESTAMP = new Key("@timestamp");
+    private static final Key PATH = new Key("path");
+    private static final Key PRIORITY = new Key("priority");
+    private static final Key LOGGER_NAME = new Key("logger_name");
+    private static final Key THREAD = new Key("thread");
+    private static final Key STACK_TRACE = new Key("stack_trace");
+    private static final Key NDC = new Key("NDC");
+    private static final Key CLASS = new Key("class");
+    private static final Key FILE = new Key("file");
+    private static final Key METHOD = new Key("method");
+    private static final Key STACK_FINGERPRINT = new Key("stack_fingerprint");
+    private static final Key STACK_REPEAT = new Key("stack_repeat");
+
+    private static final Key TRUNCATED = new Key("truncated");
+
+    /**
+     * Names of the fields written by the encoder itself.
+     */
+    private static final Set<String> RESERVED_NAMES = new HashSet<String>(
+	    Arrays.asList(new String[] { "@version", "type", "application",
+		    "environment", "host", "@timestamp", "path", "priority",
+		    "logger_name", "thread", "NDC", "class", "file", "method",
+		    "message", "stack_trace", "stack_fingerprint",
+		    "stack_repeat", "truncated" }));
+
+    // constant fields, written with every event by binary generators
+    private static final Key VERSION = new Key("@version");
+    private static final Key TYPE = new Key("type");
+    private static final Key APPLICATION = new Key("application");
+    private static final Key ENVIRONMENT = new Key("environment");
+    private static final Key HOST = new Key("host");
+
+    /**
+     * Bytes kept aside from the budget for the truncation marker and the
+     * closing brace.
+     */
+    private static final int RESERVED_SIZE = TRUNCATED.prefix.charLength()
+	    + "true".length() + 1;
+
+    private static final String VERSION_VALUE = "1";
+
+    private static final String ELLIPSIS = "...";
+
+    private final ByteBufferOutputStream out;
+
+    private final LogstashTimestampFormat timestampFormat = new LogstashTimestampFormat();
+
+    // every character takes at least one byte, so a byte limit is also a
+    // character limit
+    private char[] chars = new char[Math.max(MAX_MESSAGE_SIZE,
+	    MAX_STACK_TRACE_SIZE)];
+
+    private int maxEventSize = DEFAULT_MAX_EVENT_SIZE;
+
+    private int maxMessageSize = MAX_MESSAGE_SIZE;
+
+    private int maxStackTraceSize = MAX_STACK_TRACE_SIZE;
+
+    private final String type;
+
+    private String application;
+
+    private String environment;
+
+    private String host;
+
+    /**
+     * Encoded constant fields, starting with the opening brace. Rebuilt
+     * whenever one of them changes.
+     */
+    private SerializedString template;
+
+    private JsonGenerator generator;
+
+    private boolean binary;
+
+    private boolean propertyFields;
+
+    /**
+     * Names of the properties written, null for all of them.
+     */
+    private Set<String> includedProperties;
+
+    private Set<String> excludedProperties = Collections.emptySet();
+
+    /**
+     * Encoded names of the properties seen so far.
+     */
+    private final Map<String, Key> propertyKeys = new HashMap<String, Key>();
+
+    /**
+     * Decides which events carry the full stack trace, null to send it with
+     * every event.
+     */
+    private StackTraceDeduplicator deduplicator;
+
+    LogstashJsonEncoder(String type, ByteBufferOutputStream out) {
+	this.type = type;
+	this.out = out;
+    }
+
+    void setApplication(String application) {
+	this.application = application;
+	template = null;
+    }
+
+    void setEnvironment(String environment) {
+	this.environment = environment;
+	template = null;
+    }
+
+    void setHost(String host) {
+	this.host = host;
+	template = null;
+    }
+
+    /**
+     * Sets the byte budget of a single encoded event.
+     */
+    void setMaxEventSize(int maxEventSize) {
+	this.maxEventSize = maxEventSize;
+    }
+
+    int getMaxEventSize() {
+	return maxEventSize;
+    }
+
+    /**
+     * Sets the byte limits of the message and stack trace values.
+     */
+    void setMaxFieldSizes(int maxMessageSize, int maxStackTraceSize) {
+	this.maxMessageSize = maxMessageSize;
+	this.maxStackTraceSize = maxStackTraceSize;
+	int maxChars = Math.max(maxMessageSize, maxStackTraceSize);
+	if (chars.length < maxChars) {
+	    chars = new char[maxChars];
+	}
+    }
+
+    /**
+     * Sends the full stack trace of a fingerprint once per
+     * <code>window</code> milliseconds, remembering up to
+     * <code>maxSize</code> fingerprints. A window that is not positive sends
+     * it with every event.
+     */
+    void setStackTraceDeduplication(long window, int maxSize) {
+	deduplicator = window > 0 && maxSize > 0 ? new StackTraceDeduplicator(
+		window, maxSize) : null;
+    }
+
+    /**
+     * Writes the MDC entries and properties of events as fields, only those
+     * named in <code>include</code> unless null and never those named in
+     * <code>exclude</code>.
+     */
+    void setPropertyFields(boolean enabled, String[] include, String[] exclude) {
+	propertyFields = enabled;
+	includedProperties = include != null ? new HashSet<String>(
+		Arrays.asList(include)) : null;
+	excludedProperties = exclude != null ? new HashSet<String>(
+		Arrays.asList(exclude)) : Collections.<String> emptySet();
+    }
+
+    /**
+     * Selects the {@link #JSON} (the default) or {@link #SMILE} format.
+     */
+    void setFormat(String format) {
+	binary = SMILE.equalsIgnoreCase(format);
+	generator = null;
+    }
+
+    boolean isBinary() {
+	return binary;
+    }
+
+    /**
+     * Encodes the constant fields, so the first event does not pay for it.
+     */
+    void prepare() throws IOException {
+	template();
+    }
+
+    ByteBufferOutputStream getOutput() {
+	return out;
+    }
+
+    /**
+     * Appends the JSON object for <code>event</code> to the output, after
+     * whatever it already holds, using at most <code>maxEventSize</code>
+     * bytes unless the fixed fields alone are larger than that.
+     */
+    void encode(LoggingEvent event) throws IOException {
+	JsonGenerator gen = generator();
+	int start = out.size();
+	boolean encoded = false;
+	try {
+	    writeStart(gen);
+	    writeName(gen, TIMESTAMP);
+	    gen.writeUTF8String(timestampFormat.format(event.getTimeStamp()), 0,
+		    LogstashTimestampFormat.LENGTH);
+	    writeField(gen, PATH, event.getLoggerName());
+	    writeField(gen, PRIORITY, event.getLevel().toString());
+	    writeField(gen, LOGGER_NAME, event.getLoggerName());
+	    writeField(gen, THREAD, event.getThreadName());
+	    writeField(gen, NDC, event.getNDC());
+
+	    LocationInfo locationInfo = event.getLocationInformation();
+	    if (locationInfo != null) {
+		writeField(gen, CLASS, locationInfo.getClassName());
+		writeField(gen, FILE, locationInfo.getFileName());
+		writeField(gen, METHOD, locationInfo.getMethodName());
+	    }
+
+	    boolean truncated = writeMessage(gen, event.getRenderedMessage(),
+		    start);
+
+	    String stackTrace = null;
+	    ThrowableInformation throwableInfo = event.getThrowableInformation();
+	    if (throwableInfo != null) {
+		String fingerprint = ThrowableRenderCache
+			.fingerprint(throwableInfo);
+		writeField(gen, STACK_FINGERPRINT, fingerprint);
+		int repeat = deduplicator != null ? deduplicator.repeat(
+			fingerprint, event.getTimeStamp()) : 0;
+		if (repeat > 0) {
+		    writeName(gen, STACK_REPEAT);
+		    gen.writeNumber(repeat);
+		} else {
+		    stackTrace = ThrowableRenderCache.joined(throwableInfo);
+		}
+	    }
+
+	    if (propertyFields) {
+		truncated |= writeProperties(gen, event, start);
+	    }
+	    truncated |= writeStackTrace(gen, stackTrace, start);
+	    if (truncated) {
+		writeName(gen, TRUNCATED);
+		gen.writeBoolean(true);
+	    }
+
+	    if (binary) {
+		gen.writeEndObject();
+	    } else {
+		gen.writeRaw('}');
+	    }
+	    gen.flush();
+	    encoded = true;
+	} finally {
+	    if (!encoded) {
+		// the generator is left in the middle of an object, start over
+		// with a fresh one on the next event
+		generator = null;
+	    }
+	}
+    }
+
+    private JsonGenerator generator() throws IOException {
+	if (generator == null && binary) {
+	    generator = SMILE_FACTORY.createGenerator(out);
+	} else if (generator == null) {
+	    generator = JSON_FACTORY.createGenerator(out);
+	    // field values are written as root level strings after raw field
+	    // prefixes, so they must not be separated by anything
+	    generator.setRootValueSeparator(null);
+	}
+	return generator;
+    }
+
+    private SerializableString template() throws IOException {
+	if (template == null) {
+	    StringWriter writer = new StringWriter();
+	    JsonGenerator gen = JSON_FACTORY.createGenerator(writer);
+	    gen.writeStartObject();
+	    gen.writeStringField("@version", VERSION_VALUE);
+	    gen.writeStringField("type", type);
+	    if (application != null) {
+		gen.writeStringField("application", application);
+	    }
+	    if (environment != null) {
+		gen.writeStringField("environment", environment);
+	    }
+	    if (host != null) {
+		gen.writeStringField("host", host);
+	    }
+	    gen.flush();
+	    template = new SerializedString(writer.toString());
+	}
+	return template;
+    }
+
+    /**
+     * Opens the object and writes the constant fields.
+     */
+    private void writeStart(JsonGenerator gen) throws IOException {
+	if (!binary) {
+	    gen.writeRaw(template());
+	    return;
+	}
+	((SmileGenerator) gen).writeHeader();
+	gen.writeStartObject();
+	writeField(gen, VERSION, VERSION_VALUE);
+	writeField(gen, TYPE, type);
+	writeField(gen, APPLICATION, application);
+	writeField(gen, ENVIRONMENT, environment);
+	writeField(gen, HOST, host);
+    }
+
+    /**
+     * Writes the name of the field whose value comes next.
+     */
+    private void writeName(JsonGenerator gen, Key key) throws IOException {
+	if (binary) {
+	    gen.writeFieldName(key.name);
+	} else {
+	    gen.writeRaw(key.prefix);
+	}
+    }
+
+    private void writeField(JsonGenerator gen, Key key, String value)
+	    throws IOException {
+	if (value != null) {
+	    writeName(gen, key);
+	    gen.writeString(value);
+	}
+    }
+
+    /**
+     * Bytes still available for a field value, given the event started at
+     * <code>start</code> and the value is preceded by the name of
+     * <code>key</code>.
+     */
+    private int remaining(JsonGenerator gen, int start, Key key)
+	    throws IOException {
+	gen.flush();
+	// two bytes for the quotes around the value
+	return maxEventSize - RESERVED_SIZE - (out.size() - start)
+		- key.prefix.charLength() - 2;
+    }
+
+    private boolean writeProperties(JsonGenerator gen, LoggingEvent event,
+	    int start) throws IOException {
+	boolean truncated = false;
+	gen.flush();
+	int end = out.size() + MAX_PROPERTIES_SIZE;
+	// the key set is raw in log4j 1.2
+	for (Iterator<?> it = event.getPropertyKeySet().iterator(); it
+		.hasNext();) {
+	    String name = (String) it.next();
+	    if (RESERVED_NAMES.contains(name)
+		    || excludedProperties.contains(name)
+		    || (includedProperties != null && !includedProperties
+			    .contains(name))) {
+		continue;
+	    }
+	    String value = event.getProperty(name);
+	    if (value == null) {
+		continue;
+	    }
+
+	    Key key = propertyKey(name);
+	    int maxBytes = Math.min(Math.min(MAX_PROPERTY_SIZE, chars.length),
+		    remaining(gen, start, key));
+	    // the name and quotes count against the properties too
+	    maxBytes = Math.min(maxBytes, end - out.size()
+		    - key.prefix.charLength() - 2);
+	    truncated |= writeTruncated(gen, key, value, 0, value.length(),
+		    maxBytes);
+	}
+	return truncated;
+    }
+
+    private Key propertyKey(String name) {
+	Key key = propertyKeys.get(name);
+	if (key == null) {
+	    key = new Key(name);
+	    if (propertyKeys.size() < MAX_CACHED_KEYS) {
+		propertyKeys.put(name, key);
+	    }
+	}
+	return key;
+    }
+
+    private boolean writeMessage(JsonGenerator gen, String message, int start)
+	    throws IOException {
+	if (message == null) {
+	    return false;
+	}
+
+	// same as String.trim(), without creating the trimmed copy
+	int begin = 0;
+	int end = message.length();
+	while (begin < end && message.charAt(begin) <= ' ') {
+	    begin++;
+	}
+	while (begin < end && message.charAt(end - 1) <= ' ') {
+	    end--;
+	}
+
+	int maxBytes = Math.min(maxMessageSize, remaining(gen, start, MESSAGE));
+	return writeTruncated(gen, MESSAGE, message, begin, end, maxBytes);
+    }
+
+    private boolean writeStackTrace(JsonGenerator gen, String stackTrace,
+	    int start) throws IOException {
+	if (stackTrace == null) {
+	    return false;
+	}
+
+	int maxBytes = Math.min(maxStackTraceSize,
+		remaining(gen, start, STACK_TRACE));
+	return writeTruncated(gen, STACK_TRACE, stackTrace, 0,
+		stackTrace.length(), maxBytes);
+    }
+
+    /**
+     * Writes <code>value[start, end)</code> as a string of at most
+     * <code>maxBytes</code> encoded bytes. A longer value is cut on a
+     * character boundary and ends with an ellipsis; if not even the ellipsis
+     * fits the field is left out.
+     * 
+     * @return whether the value was truncated.
+     */
+    private boolean writeTruncated(JsonGenerator gen,
+	    Key key, CharSequence value, int start, int end,
+	    int maxBytes) throws IOException {
+	int cut = cutIndex(value, start, end, maxBytes);
+	if (cut == end) {
+	    getChars(value, start, end);
+	    writeName(gen, key);
+	    gen.writeString(chars, 0, end - start);
+	    return false;
+	}
+
+	if (maxBytes < ELLIPSIS.length()) {
+	    return true;
+	}
+
+	int len = cutIndex(value, start, cut, maxBytes - ELLIPSIS.length())
+		- start;
+	getChars(value, start, start + len);
+	ELLIPSIS.getChars(0, ELLIPSIS.length(), chars, len);
+	writeName(gen, key);
+	gen.writeString(chars, 0, len + ELLIPSIS.length());
+	return true;
+    }
+
+    /**
+     * Returns the end of the longest prefix of <code>value[start, end)</code>
+     * whose JSON escaped UTF-8 encoding, as written by the generator, takes at
+     * most <code>maxBytes</code> bytes. Surrogate pairs are never split.
+     */
+    static int cutIndex(CharSequence value, int start, int end, int maxBytes) {
+	int bytes = 0;
+	int i = start;
+	while (i < end) {
+	    char c = value.charAt(i);
+	    int width = 1;
+	    int size;
+	    if (c < 0x80) {
+		size = escapedSize(c);
+	    } else if (c < 0x800) {
+		size = 2;
+	    } else if (Character.isHighSurrogate(c) && i + 1 < end
+		    && Character.isLowSurrogate(value.charAt(i + 1))) {
+		// the generator writes each half of the pair as a unicode
+		// escape rather than as a four byte sequence
+		size = 12;
+		width = 2;
+	    } else if (c >= Character.MIN_SURROGATE
+		    && c <= Character.MAX_SURROGATE) {
+		size = 6;
+	    } else {
+		size = 3;
+	    }
+
+	    if (bytes + size > maxBytes) {
+		return i;
+	    }
+	    bytes += size;
+	    i += width;
+	}
+	return end;
+    }
+
+    private static int escapedSize(char c) {
+	if (c == '"' || c == '\\') {
+	    return 2;
+	}
+	if (c < 0x20) {
+	    switch (c) {
+	    case '\b':
+	    case '\t':
+	    case '\n':
+	    case '\f':
+	    case '\r':
+		return 2;
+	    default:
+		// escaped as a six character unicode escape
+		return 6;
+	    }
+	}
+	return 1;
+    }
+
+    private void getChars(CharSequence value, int start, int end) {
+	if (value instanceof String) {
+	    ((String) value).getChars(start, end, chars, 0);
+	} else {
+	    ((StringBuilder) value).getChars(start, end, chars, 0);
+	}
+    }
+
+    /**
+     * A field name, pre-encoded both as the raw <code>,"name":</code> text
+     * written before a JSON value and as a name for binary generators.
+     */
+    private static final class Key {
+	final SerializedString prefix;
+	final SerializedString name;
+
+	Key(String name) {
+	    this.prefix = new SerializedString(",\""
+		    + new String(JsonStringEncoder.getInstance().quoteAsString(
+			    name)) + "\":");
+	    this.name = new SerializedString(name);
+	}
+    }
+}
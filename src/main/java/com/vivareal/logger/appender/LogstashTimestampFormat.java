@@ -0,0 +1,84 @@
+package com.vivareal.logger.appender;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Formats event timestamps for the Logstash <code>@timestamp</code> field, as
+ * ISO-8601 UTC with millisecond precision, e.g.
+ * <code>2014-06-11T17:42:05.123Z</code>.
+ * 
+ * <p>
+ * The value is formatted into a reused byte buffer, ready to be written as an
+ * already encoded UTF-8 string. Only the milliseconds are computed for every
+ * event: the part up to the seconds is cached, its seconds digits patched
+ * when an event falls into another second of the same minute and the rest
+ * formatted again only when the minute changes. Instances are not thread
+ * safe and are meant to be confined to the appender that owns them.
+ */
+class LogstashTimestampFormat {
+    static final String PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+
+    /**
+     * Length in bytes of a formatted timestamp.
+     */
+    static final int LENGTH = 24;
+
+    private static final String MINUTE_PATTERN = "yyyy-MM-dd'T'HH:mm:";
+
+    private static final int SECONDS_OFFSET = 17;
+
+    private final DateFormat dateFormat;
+
+    private final Date date = new Date();
+
+    private final byte[] bytes = new byte[LENGTH];
+
+    private long cachedMinute = Long.MIN_VALUE;
+
+    private long cachedSecond = Long.MIN_VALUE;
+
+    LogstashTimestampFormat() {
+	dateFormat = new SimpleDateFormat(MINUTE_PATTERN);
+	dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+	bytes[SECONDS_OFFSET + 2] = '.';
+	bytes[LENGTH - 1] = 'Z';
+    }
+
+    /**
+     * Formats <code>timeStamp</code> into the first {@link #LENGTH} bytes of
+     * the returned buffer, which is overwritten by the next call.
+     */
+    byte[] format(long timeStamp) {
+	long second = floorDiv(timeStamp, 1000);
+	if (second != cachedSecond) {
+	    long minute = floorDiv(second, 60);
+	    if (minute != cachedMinute) {
+		date.setTime(minute * 60 * 1000);
+		String prefix = dateFormat.format(date);
+		for (int i = 0; i < SECONDS_OFFSET; i++) {
+		    bytes[i] = (byte) prefix.charAt(i);
+		}
+		cachedMinute = minute;
+	    }
+	    putDigits((int) (second - minute * 60), SECONDS_OFFSET, 2);
+	    cachedSecond = second;
+	}
+	putDigits((int) (timeStamp - second * 1000), SECONDS_OFFSET + 3, 3);
+	return bytes;
+    }
+
+    private void putDigits(int value, int offset, int count) {
+	for (int i = offset + count - 1; i >= offset; i--) {
+	    bytes[i] = (byte) ('0' + value % 10);
+	    value /= 10;
+	}
+    }
+
+    private static long floorDiv(long value, long divisor) {
+	long quotient = value / divisor;
+	return value % divisor < 0 ? quotient - 1 : quotient;
+    }
+}
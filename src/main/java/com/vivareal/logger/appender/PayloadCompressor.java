@@ -0,0 +1,188 @@
+package com.vivareal.logger.appender;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses datagram payloads with GZIP or ZLIB.
+ * 
+ * <p>
+ * A compressor reuses one {@link Deflater} and its scratch buffers, so
+ * compressing does not allocate in steady state. It is not thread safe: it is
+ * used under the lock of the appender that owns it, which must {@link #end()}
+ * it to free the native memory of the deflater. ZLIB payloads can be
+ * compressed with a preset dictionary of the field names and values every
+ * Logstash event repeats ({@link #dictionary()}), which makes even small
+ * payloads compress well; the receiver must inflate with the same
+ * dictionary. GZIP has no provision for a preset dictionary, so it is only
+ * used with ZLIB.
+ */
+public final class PayloadCompressor {
+    public static final String NONE = "none";
+
+    public static final String GZIP = "gzip";
+
+    public static final String ZLIB = "zlib";
+
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b,
+	    Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private static final int GZIP_TRAILER_SIZE = 8;
+
+    /**
+     * Most frequent content goes last, where deflate finds it with the
+     * shortest distances.
+     */
+    private static final byte[] DICTIONARY = ("\"class\":\"?\",\"file\":\"?\",\"method\":\"?\""
+	    + "\\n\\tat java.lang.reflect.Method.invoke(Method.java:"
+	    + "\\n\\tat sun.reflect.\\n\\tat org.springframework.\\n\\tat com.vivareal."
+	    + ",\"truncated\":true,\"stack_trace\":\"java.lang.\",\"NDC\":\""
+	    + ",\"class\":\"com.vivareal.\",\"file\":\".java\",\"method\":\""
+	    + "\"DEBUG\"\"WARN\"\"ERROR\",\"priority\":\"INFO\",\"thread\":\""
+	    + "\",\"path\":\"com.vivareal.\",\"logger_name\":\"com.vivareal."
+	    + ",\"message\":\",\"@timestamp\":\"20"
+	    + "{\"@version\":\"1\",\"type\":\"udp\",\"application\":\""
+	    + "\",\"environment\":\"\",\"host\":\"").getBytes(Charset
+	    .forName("UTF-8"));
+
+    private final boolean gzip;
+
+    private final boolean useDictionary;
+
+    private final State state;
+
+    /**
+     * @param format
+     *            {@link #GZIP} or {@link #ZLIB}.
+     * @param level
+     *            deflate level, 0-9 or -1 for the default.
+     * @param useDictionary
+     *            whether ZLIB payloads use the preset dictionary.
+     */
+    PayloadCompressor(String format, int level, boolean useDictionary) {
+	this.gzip = GZIP.equalsIgnoreCase(format);
+	this.useDictionary = useDictionary && !gzip;
+	this.state = new State(new Deflater(level, gzip));
+    }
+
+    /**
+     * Returns the preset dictionary ZLIB payloads are compressed with when
+     * the dictionary is enabled.
+     */
+    public static byte[] dictionary() {
+	return DICTIONARY.clone();
+    }
+
+    /**
+     * Compresses the remaining bytes of <code>payload</code>, consuming them.
+     * 
+     * @return a buffer owned by the compressor, positioned at the compressed
+     *         bytes and only valid until its next call.
+     */
+    ByteBuffer compress(ByteBuffer payload) {
+	State st = state;
+	int length = payload.remaining();
+	byte[] input = st.input(length);
+	payload.get(input, 0, length);
+
+	Deflater deflater = st.deflater;
+	deflater.reset();
+	if (useDictionary) {
+	    deflater.setDictionary(DICTIONARY);
+	}
+	deflater.setInput(input, 0, length);
+	deflater.finish();
+
+	// deflate worst case expansion is a few bytes per 16KB block
+	byte[] output = st.output(length + length / 1000 + 64);
+	int position = 0;
+	if (gzip) {
+	    System.arraycopy(GZIP_HEADER, 0, output, 0, GZIP_HEADER.length);
+	    position = GZIP_HEADER.length;
+	}
+	while (!deflater.finished()) {
+	    if (position == output.length) {
+		output = st.grow();
+	    }
+	    position += deflater.deflate(output, position, output.length
+		    - position);
+	}
+
+	if (gzip) {
+	    if (position + GZIP_TRAILER_SIZE > output.length) {
+		output = st.grow();
+	    }
+	    st.crc.reset();
+	    st.crc.update(input, 0, length);
+	    position = putIntLE(output, position, (int) st.crc.getValue());
+	    position = putIntLE(output, position, length);
+	}
+
+	ByteBuffer result = st.outputBuffer;
+	result.clear();
+	result.limit(position);
+	return result;
+    }
+
+    /**
+     * Releases the deflater. The compressor cannot be used afterwards.
+     */
+    void end() {
+	state.deflater.end();
+    }
+
+    private static int putIntLE(byte[] b, int offset, int value) {
+	b[offset] = (byte) value;
+	b[offset + 1] = (byte) (value >>> 8);
+	b[offset + 2] = (byte) (value >>> 16);
+	b[offset + 3] = (byte) (value >>> 24);
+	return offset + 4;
+    }
+
+    /**
+     * Deflater and scratch buffers.
+     */
+    private static final class State {
+	private final Deflater deflater;
+
+	private final CRC32 crc = new CRC32();
+
+	private byte[] input = new byte[0];
+
+	private byte[] output = new byte[0];
+
+	private ByteBuffer outputBuffer = ByteBuffer.wrap(output);
+
+	State(Deflater deflater) {
+	    this.deflater = deflater;
+	}
+
+	byte[] input(int length) {
+	    if (input.length < length) {
+		input = new byte[length];
+	    }
+	    return input;
+	}
+
+	byte[] output(int length) {
+	    if (output.length < length) {
+		setOutput(new byte[length]);
+	    }
+	    return output;
+	}
+
+	byte[] grow() {
+	    byte[] grown = new byte[output.length * 2];
+	    System.arraycopy(output, 0, grown, 0, output.length);
+	    setOutput(grown);
+	    return output;
+	}
+
+	private void setOutput(byte[] output) {
+	    this.output = output;
+	    this.outputBuffer = ByteBuffer.wrap(output);
+	}
+    }
+}
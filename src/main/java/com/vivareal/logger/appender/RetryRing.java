@@ -0,0 +1,113 @@
+package com.vivareal.logger.appender;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A bounded FIFO of datagram payloads, kept in a single byte ring as
+ * length-prefixed records so holding them allocates nothing.
+ * 
+ * <p>
+ * When a payload does not fit the oldest ones are evicted; the number evicted
+ * is counted in {@link #evicted}.
+ * 
+ * <p>
+ * Not thread safe, used under the appender lock.
+ */
+final class RetryRing {
+    private static final int PREFIX_SIZE = 4;
+
+    private final byte[] ring;
+
+    /**
+     * Start of the oldest record.
+     */
+    private int head;
+
+    /**
+     * Bytes taken by the records, prefixes included.
+     */
+    private int used;
+    private int count;
+    private ByteBuffer scratch = ByteBuffer.allocate(0);
+
+    long evicted;
+
+    RetryRing(int capacity) {
+	ring = new byte[capacity];
+    }
+
+    int capacity() {
+	return ring.length;
+    }
+
+    boolean isEmpty() {
+	return count == 0;
+    }
+
+    int size() {
+	return count;
+    }
+
+    /**
+     * Appends the remaining bytes of <code>payload</code>, evicting the oldest
+     * payloads as needed. Returns <code>false</code>, keeping the ring
+     * unchanged, if the payload is larger than the whole ring.
+     */
+    boolean add(ByteBuffer payload) {
+	int length = payload.remaining();
+	if (PREFIX_SIZE + length > ring.length) {
+	    return false;
+	}
+	while (ring.length - used < PREFIX_SIZE + length) {
+	    removeFirst();
+	    evicted++;
+	}
+
+	int tail = (head + used) % ring.length;
+	for (int i = 0; i < PREFIX_SIZE; i++) {
+	    ring[(tail + i) % ring.length] = (byte) (length >>> (24 - 8 * i));
+	}
+	tail = (tail + PREFIX_SIZE) % ring.length;
+	int first = Math.min(length, ring.length - tail);
+	payload.get(ring, tail, first);
+	payload.get(ring, 0, length - first);
+	used += PREFIX_SIZE + length;
+	count++;
+	return true;
+    }
+
+    /**
+     * Returns the oldest payload, ready to be read, in a buffer reused by the
+     * next call.
+     */
+    ByteBuffer first() {
+	int length = firstLength();
+	if (scratch.capacity() < length) {
+	    scratch = ByteBuffer.allocate(Math.max(length, 2 * scratch.capacity()));
+	}
+	scratch.clear();
+	int start = (head + PREFIX_SIZE) % ring.length;
+	int first = Math.min(length, ring.length - start);
+	scratch.put(ring, start, first);
+	scratch.put(ring, 0, length - first);
+	scratch.flip();
+	return scratch;
+    }
+
+    void removeFirst() {
+	int record = PREFIX_SIZE + firstLength();
+	head = (head + record) % ring.length;
+	used -= record;
+	if (--count == 0) {
+	    head = 0;
+	}
+    }
+
+    private int firstLength() {
+	int length = 0;
+	for (int i = 0; i < PREFIX_SIZE; i++) {
+	    length = (length << 8) | (ring[(head + i) % ring.length] & 0xff);
+	}
+	return length;
+    }
+}
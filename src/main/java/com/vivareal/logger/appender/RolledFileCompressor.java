@@ -0,0 +1,102 @@
+package com.vivareal.logger.appender;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Compresses rolled log files with GZIP, replacing <code>name</code> by
+ * <code>name.gz</code>.
+ *
+ * <p>
+ * The compressed data is written to <code>name.gz.tmp</code>, which is
+ * renamed once complete, and the original is only deleted after that. A
+ * <code>.gz.tmp</code> file left next to its original therefore marks a
+ * compression that did not finish, and can be deleted and compressed again.
+ * Instances reuse their copy buffer and are meant to be confined to one
+ * thread.
+ */
+class RolledFileCompressor {
+    static final String SUFFIX = ".gz";
+
+    static final String TEMP_SUFFIX = ".gz.tmp";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int level;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    /**
+     * @param level
+     *            deflate level, 0-9 or -1 for the default.
+     */
+    RolledFileCompressor(int level) {
+	this.level = level;
+    }
+
+    /**
+     * Compresses <code>source</code> into <code>source.gz</code> and deletes
+     * it. Returns <code>false</code>, leaving <code>source</code> alone and no
+     * temporary file behind, if that fails or the current thread is
+     * interrupted.
+     */
+    boolean compress(File source) {
+	File temp = new File(source.getPath() + TEMP_SUFFIX);
+	File target = new File(source.getPath() + SUFFIX);
+	boolean done = false;
+	try {
+	    InputStream in = new FileInputStream(source);
+	    try {
+		OutputStream out = new GZIPOutputStream(new FileOutputStream(
+			temp), BUFFER_SIZE) {
+		    {
+			def.setLevel(level);
+		    }
+		};
+		try {
+		    int n;
+		    while ((n = in.read(buffer)) > 0) {
+			if (Thread.currentThread().isInterrupted()) {
+			    throw new InterruptedIOException();
+			}
+			out.write(buffer, 0, n);
+		    }
+		} finally {
+		    out.close();
+		}
+	    } finally {
+		in.close();
+	    }
+	    if (!temp.renameTo(target)) {
+		LogLog.error("Failed to rename [" + temp + "] to [" + target
+			+ "].");
+		return false;
+	    }
+	    done = true;
+	    if (!source.delete()) {
+		LogLog.warn("Failed to delete [" + source
+			+ "] after compressing it.");
+	    }
+	    LogLog.debug(source + " -> " + target);
+	    return true;
+	} catch (InterruptedIOException e) {
+	    LogLog.debug("Compression of [" + source + "] interrupted.");
+	    return false;
+	} catch (IOException e) {
+	    LogLog.error("Failed to compress [" + source + "].", e);
+	    return false;
+	} finally {
+	    if (!done) {
+		temp.delete();
+	    }
+	}
+    }
+}
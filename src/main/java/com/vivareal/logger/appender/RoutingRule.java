@@ -0,0 +1,186 @@
+package com.vivareal.logger.appender;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Level;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * A routing rule used by {@link AsyncAppender} to decide which of its attached
+ * appenders should receive an event.
+ * 
+ * <p>
+ * A rule names an attached appender, a level range and an optional list of
+ * logger name prefixes. Rules are written as
+ * <code>appenderName=MIN[-MAX][@prefix,prefix...]</code> and separated by
+ * semicolons, e.g.
+ * <code>file=DEBUG; logstash=WARN; audit=INFO-INFO@com.vivareal.audit</code>.
+ * A single level means "this level and above".
+ * 
+ * <p>
+ * The rules are evaluated once, when the event is enqueued, and the result is
+ * kept as a bitmask where bit <code>i</code> is set when rule <code>i</code>
+ * matched. Hence there can be at most {@link #MAX_RULES} rules.
+ */
+final class RoutingRule {
+    /**
+     * Maximum number of rules, one per bit of the route mask.
+     */
+    static final int MAX_RULES = 64;
+
+    private final String appenderName;
+
+    private final int minLevel;
+
+    private final int maxLevel;
+
+    private final String[] loggerPrefixes;
+
+    RoutingRule(String appenderName, Level minLevel, Level maxLevel,
+	    String[] loggerPrefixes) {
+	this.appenderName = appenderName;
+	this.minLevel = minLevel.toInt();
+	this.maxLevel = maxLevel.toInt();
+	this.loggerPrefixes = loggerPrefixes;
+    }
+
+    String getAppenderName() {
+	return appenderName;
+    }
+
+    boolean matches(LoggingEvent event) {
+	int level = event.getLevel().toInt();
+	if (level < minLevel || level > maxLevel) {
+	    return false;
+	}
+
+	if (loggerPrefixes.length == 0) {
+	    return true;
+	}
+
+	String loggerName = event.getLoggerName();
+	if (loggerName == null) {
+	    return false;
+	}
+
+	for (int i = 0; i < loggerPrefixes.length; i++) {
+	    if (loggerName.startsWith(loggerPrefixes[i])) {
+		return true;
+	    }
+	}
+
+	return false;
+    }
+
+    /**
+     * Computes the route mask of an event against the given rules.
+     */
+    static long computeMask(RoutingRule[] rules, LoggingEvent event) {
+	long mask = 0L;
+	for (int i = 0; i < rules.length; i++) {
+	    if (rules[i].matches(event)) {
+		mask |= 1L << i;
+	    }
+	}
+	return mask;
+    }
+
+    /**
+     * Maps the name of every appender named by the rules to the bits of its
+     * rules, as a {@link Long}. Appenders missing from the map are not routed
+     * and receive every event.
+     */
+    static Map<String, Long> appenderBits(RoutingRule[] rules) {
+	Map<String, Long> bits = new HashMap<String, Long>();
+	for (int i = 0; i < rules.length; i++) {
+	    Long previous = bits.get(rules[i].appenderName);
+	    long bit = 1L << i;
+	    bits.put(rules[i].appenderName, Long.valueOf(previous == null ? bit
+		    : previous.longValue() | bit));
+	}
+	return bits;
+    }
+
+    /**
+     * Parses a semicolon separated list of rules. Malformed rules are reported
+     * through {@link LogLog} and skipped.
+     */
+    static RoutingRule[] parse(String value) {
+	List<RoutingRule> rules = new ArrayList<RoutingRule>();
+	if (StringUtils.isBlank(value)) {
+	    return new RoutingRule[0];
+	}
+
+	String[] specs = StringUtils.split(value, ';');
+	for (int i = 0; i < specs.length; i++) {
+	    String spec = specs[i].trim();
+	    if (spec.length() == 0) {
+		continue;
+	    }
+
+	    if (rules.size() == MAX_RULES) {
+		LogLog.error("Too many routing rules, ignoring [" + spec + "].");
+		continue;
+	    }
+
+	    RoutingRule rule = parseRule(spec);
+	    if (rule != null) {
+		rules.add(rule);
+	    }
+	}
+
+	return rules.toArray(new RoutingRule[rules.size()]);
+    }
+
+    private static RoutingRule parseRule(String spec) {
+	int eq = spec.indexOf('=');
+	if (eq <= 0) {
+	    LogLog.error("Invalid routing rule [" + spec
+		    + "], expected appenderName=LEVEL.");
+	    return null;
+	}
+
+	String appenderName = spec.substring(0, eq).trim();
+	String rest = spec.substring(eq + 1).trim();
+
+	String[] prefixes = new String[0];
+	int at = rest.indexOf('@');
+	if (at >= 0) {
+	    prefixes = StringUtils.stripAll(StringUtils.split(
+		    rest.substring(at + 1), ','));
+	    rest = rest.substring(0, at).trim();
+	}
+
+	String min = rest;
+	String max = null;
+	int dash = rest.indexOf('-');
+	if (dash >= 0) {
+	    min = rest.substring(0, dash).trim();
+	    max = rest.substring(dash + 1).trim();
+	}
+
+	Level minLevel = Level.toLevel(min, null);
+	Level maxLevel = max == null ? Level.OFF : Level.toLevel(max, null);
+	if (minLevel == null || maxLevel == null) {
+	    LogLog.error("Invalid level range in routing rule [" + spec + "].");
+	    return null;
+	}
+
+	return new RoutingRule(appenderName, minLevel, maxLevel, prefixes);
+    }
+
+    public String toString() {
+	StringBuilder sb = new StringBuilder(appenderName);
+	sb.append('=').append(Level.toLevel(minLevel)).append('-')
+		.append(Level.toLevel(maxLevel));
+	if (loggerPrefixes.length > 0) {
+	    sb.append('@').append(StringUtils.join(loggerPrefixes, ','));
+	}
+	return sb.toString();
+    }
+}
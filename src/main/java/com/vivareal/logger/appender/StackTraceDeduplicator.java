@@ -0,0 +1,165 @@
+package com.vivareal.logger.appender;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.spi.ThrowableInformation;
+
+/**
+ * Fingerprints stack traces and decides which occurrences of the same one
+ * carry the full trace.
+ * 
+ * <p>
+ * The fingerprint is a hash of the exception class, its top
+ * <code>FRAMES</code> frames (class and method, without line numbers so it
+ * survives unrelated edits) and the classes of its causes. The message is
+ * left out since it often holds ids or values that differ on every
+ * occurrence.
+ * 
+ * <p>
+ * The full trace of a fingerprint is sent on first sight and then once per
+ * window; the occurrences in between only carry the fingerprint and their
+ * number within the window. Fingerprints are kept in a bounded LRU map.
+ * 
+ * <p>
+ * Not thread safe, used by the encoder under the appender lock.
+ */
+final class StackTraceDeduplicator {
+    /**
+     * Number of top frames hashed into the fingerprint.
+     */
+    static final int FRAMES = 8;
+
+    /**
+     * The default window (60000 milliseconds or 1 minute) between two full
+     * traces of the same fingerprint.
+     */
+    static final int DEFAULT_WINDOW = 60000;
+
+    /**
+     * The default number of fingerprints remembered.
+     */
+    static final int DEFAULT_MAX_SIZE = 1024;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final int MAX_CAUSES = 16;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final String CAUSED_BY = "Caused by: ";
+    private static final String AT = "at ";
+
+    private final long window;
+
+    /**
+     * Fingerprint to the start of its window and the occurrences in it.
+     */
+    private final Map<String, long[]> seen;
+
+    StackTraceDeduplicator(long window, final int maxSize) {
+	this.window = window;
+	this.seen = new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+	    private static final long serialVersionUID = 1L;
+
+	    protected boolean removeEldestEntry(
+		    Map.Entry<String, long[]> eldest) {
+		return size() > maxSize;
+	    }
+	};
+    }
+
+    /**
+     * Records an occurrence of <code>fingerprint</code> at <code>time</code>
+     * and returns its number within the window, zero when the full trace must
+     * be sent.
+     */
+    int repeat(String fingerprint, long time) {
+	long[] occurrences = seen.get(fingerprint);
+	if (occurrences == null) {
+	    seen.put(fingerprint, new long[] { time, 0 });
+	    return 0;
+	}
+	if (time - occurrences[0] >= window || time < occurrences[0]) {
+	    occurrences[0] = time;
+	    occurrences[1] = 0;
+	    return 0;
+	}
+	return (int) Math.min(++occurrences[1], Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the fingerprint of the throwable as 16 hex digits. It is the
+     * same whether computed from the throwable or, when that is not available
+     * (e.g. for an event received from a remote process), from its string
+     * representation.
+     */
+    static String fingerprint(ThrowableInformation info) {
+	long hash = FNV_OFFSET;
+	Throwable throwable = info.getThrowable();
+	if (throwable != null) {
+	    hash = end(hash(hash, throwable.getClass().getName(), 0, -1));
+	    StackTraceElement[] frames = throwable.getStackTrace();
+	    for (int i = 0; i < frames.length && i < FRAMES; i++) {
+		hash = hash(hash, frames[i].getClassName(), 0, -1);
+		hash = (hash ^ '.') * FNV_PRIME;
+		hash = end(hash(hash, frames[i].getMethodName(), 0, -1));
+	    }
+	    Throwable cause = throwable.getCause();
+	    for (int i = 0; cause != null && i < MAX_CAUSES; i++) {
+		hash = end(hash(hash, cause.getClass().getName(), 0, -1));
+		cause = cause.getCause();
+	    }
+	} else if (info.getThrowableStrRep() != null) {
+	    // "class: message", then "\tat class.method(File.java:123)" frames
+	    // and "Caused by: class: message" lines
+	    String[] lines = info.getThrowableStrRep();
+	    int frames = 0;
+	    int causes = 0;
+	    for (int i = 0; i < lines.length; i++) {
+		String line = lines[i];
+		if (i == 0) {
+		    hash = end(hash(hash, line, 0, ':'));
+		} else if (line.startsWith(CAUSED_BY)) {
+		    if (causes++ < MAX_CAUSES) {
+			hash = end(hash(hash, line, CAUSED_BY.length(), ':'));
+		    }
+		} else if (causes == 0 && frames < FRAMES) {
+		    int at = line.indexOf(AT);
+		    if (at >= 0) {
+			frames++;
+			hash = end(hash(hash, line, at + AT.length(), '('));
+		    }
+		}
+	    }
+	}
+
+	char[] hex = new char[16];
+	for (int i = hex.length - 1; i >= 0; i--) {
+	    hex[i] = HEX[(int) (hash & 0xf)];
+	    hash >>>= 4;
+	}
+	return new String(hex);
+    }
+
+    /**
+     * FNV-1a over the characters of <code>value</code> from
+     * <code>begin</code> up to <code>stop</code> or the end.
+     */
+    private static long hash(long hash, String value, int begin, int stop) {
+	for (int i = begin; i < value.length(); i++) {
+	    char c = value.charAt(i);
+	    if (c == stop) {
+		break;
+	    }
+	    hash = (hash ^ c) * FNV_PRIME;
+	}
+	return hash;
+    }
+
+    /**
+     * Ends a value with a separator, so consecutive values cannot run into
+     * each other.
+     */
+    private static long end(long hash) {
+	return (hash ^ '\n') * FNV_PRIME;
+    }
+}
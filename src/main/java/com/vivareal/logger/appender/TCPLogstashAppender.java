@@ -0,0 +1,788 @@
+package com.vivareal.logger.appender;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.vivareal.logger.LogstashEvent;
+
+/**
+ * Sends events to Logstash over a persistent TCP connection, as
+ * newline-delimited JSON with the same {@link LogstashEvent} schema
+ * {@link UDPAppender} uses (Logstash <code>tcp</code> input with the
+ * <code>json_lines</code> codec).
+ * 
+ * <p>
+ * Events are encoded into a write buffer of at most <b>BufferSize</b> bytes
+ * and written in batches with non-blocking writes, once <b>BatchSize</b>
+ * bytes are buffered or an event has waited <b>LingerTime</b> milliseconds,
+ * so the appender never waits for the receiver as long as there is room in
+ * the buffer. When the buffer is full the caller waits for room, which
+ * behind an {@link AsyncAppender} stalls the dispatcher and makes the
+ * <code>AsyncAppender</code> buffer fill up and its overflow policy
+ * (summarize and discard, or block) apply, instead of events silently
+ * disappearing downstream. With <b>Overflow</b> set to <code>drop</code> the
+ * caller only waits up to <b>WriteTimeout</b> milliseconds and the event is
+ * then dropped.
+ * 
+ * <p>
+ * While disconnected, events are kept in the write buffer until it is full.
+ * Reconnection is attempted in the background with an exponential backoff
+ * starting at <b>ReconnectionDelay</b> and capped at
+ * <b>MaxReconnectionDelay</b> milliseconds. The backoff carries over from
+ * one connection to the next, so a collector that accepts connections and
+ * drops them is not reconnected to in a loop, and only starts over once a
+ * connection stayed up for <b>MaxReconnectionDelay</b>.
+ */
+public class TCPLogstashAppender extends AppenderSkeleton {
+    /**
+     * The default port number of the Logstash tcp input (4560).
+     */
+    static final int DEFAULT_PORT = 4560;
+
+    /**
+     * The default initial reconnection delay (1 second).
+     */
+    static final int DEFAULT_RECONNECTION_DELAY = 1000;
+
+    /**
+     * The default maximum reconnection delay (30 seconds).
+     */
+    static final int DEFAULT_MAX_RECONNECTION_DELAY = 30000;
+
+    /**
+     * The default write buffer size (256 KB).
+     */
+    static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * The default time (1 second) to wait for room in a full write buffer
+     * before dropping an event, when dropping.
+     */
+    static final int DEFAULT_WRITE_TIMEOUT = 1000;
+
+    /**
+     * The default number of buffered bytes (8 KB) written at once.
+     */
+    static final int DEFAULT_BATCH_SIZE = 8192;
+
+    /**
+     * The default time (100 milliseconds) a batch waits for more events.
+     */
+    static final int DEFAULT_LINGER_TIME = 100;
+
+    /**
+     * Callers wait for room in a full write buffer as long as it takes.
+     */
+    public static final String BLOCK = "block";
+
+    /**
+     * Events are dropped after waiting <b>WriteTimeout</b> for room.
+     */
+    public static final String DROP = "drop";
+
+    static final int CONNECT_TIMEOUT = 5000;
+
+    private final LogstashJsonEncoder encoder = new LogstashJsonEncoder("tcp",
+	    new ByteBufferOutputStream(UDPAppender.INITIAL_BUFFER_SIZE, true));
+
+    private final Random random = new Random();
+
+    String localMachine;
+    String remoteHost;
+    String application;
+    String environment;
+    InetAddress address;
+    int port = DEFAULT_PORT;
+    int reconnectionDelay = DEFAULT_RECONNECTION_DELAY;
+    int maxReconnectionDelay = DEFAULT_MAX_RECONNECTION_DELAY;
+    int bufferSize = DEFAULT_BUFFER_SIZE;
+    int writeTimeout = DEFAULT_WRITE_TIMEOUT;
+    int batchSize = DEFAULT_BATCH_SIZE;
+    int lingerTime = DEFAULT_LINGER_TIME;
+    String overflow = BLOCK;
+    private boolean dropOverflow;
+    int maxEventSize = LogstashJsonEncoder.DEFAULT_MAX_EVENT_SIZE;
+    int stackTraceWindow = StackTraceDeduplicator.DEFAULT_WINDOW;
+    int stackTraceCacheSize = StackTraceDeduplicator.DEFAULT_MAX_SIZE;
+    boolean propertyFields = true;
+    String includeProperties;
+    String excludeProperties = UDPAppender.DEFAULT_EXCLUDE_PROPERTIES;
+
+    SocketChannel channel;
+    private Selector selector;
+
+    /**
+     * Whether the last write stopped in the middle of an event.
+     */
+    private boolean partialLine;
+
+    private long droppedCount;
+
+    /**
+     * Reconnection delay the next connector starts from, kept across
+     * connections.
+     */
+    private long backoff;
+
+    /**
+     * Time the current connection was established.
+     */
+    private long connectedAt;
+
+    private Connector connector;
+    private Flusher flusher;
+
+    public TCPLogstashAppender() {
+    }
+
+    /**
+     * Sends events to the <code>host</code> and <code>port</code>.
+     */
+    public TCPLogstashAppender(String host, int port) {
+	setRemoteHost(host);
+	this.port = port;
+	activateOptions();
+    }
+
+    /**
+     * Start connecting to the <b>RemoteHost</b> and <b>Port</b>.
+     */
+    public void activateOptions() {
+	try {
+	    localMachine = InetAddress.getLocalHost().getHostName();
+	} catch (UnknownHostException uhe) {
+	    try {
+		localMachine = InetAddress.getLocalHost().getHostAddress();
+	    } catch (UnknownHostException uhe2) {
+		localMachine = "unknown";
+	    }
+	}
+
+	// allow system property of application to be primary
+	if (application == null) {
+	    application = System.getProperty("application");
+	} else {
+	    if (System.getProperty("application") != null) {
+		application = application + "-"
+			+ System.getProperty("application");
+	    }
+	}
+
+	encoder.setApplication(application);
+	encoder.setEnvironment(environment);
+	encoder.setHost(localMachine);
+	encoder.setMaxEventSize(maxEventSize);
+	encoder.setStackTraceDeduplication(stackTraceWindow,
+		stackTraceCacheSize);
+	encoder.setPropertyFields(propertyFields,
+		StringUtils.isBlank(includeProperties) ? null : StringUtils
+			.split(includeProperties, ", "), StringUtils.split(
+			excludeProperties, ", "));
+	try {
+	    encoder.prepare();
+	} catch (IOException e) {
+	    LogLog.error("Could not encode the constant Logstash fields.", e);
+	}
+
+	dropOverflow = DROP.equalsIgnoreCase(overflow);
+	if (!dropOverflow && !BLOCK.equalsIgnoreCase(overflow)) {
+	    LogLog.warn("Unknown overflow [" + overflow + "] for appender ["
+		    + name + "], using " + BLOCK + ".");
+	}
+
+	synchronized (this) {
+	    if (flusher == null) {
+		flusher = new Flusher();
+		flusher.setDaemon(true);
+		flusher.setName("TCPLogstashAppender-Flusher-"
+			+ flusher.getName());
+		flusher.start();
+	    }
+
+	    if (address != null && channel == null) {
+		fireConnector();
+	    }
+	}
+    }
+
+    public void append(LoggingEvent event) {
+	if (event == null) {
+	    return;
+	}
+
+	if (address == null) {
+	    errorHandler.error("No remote host is set for TCPLogstashAppender named \""
+		    + this.name + "\".");
+
+	    return;
+	}
+
+	ByteBufferOutputStream out = encoder.getOutput();
+	if (out.size() >= bufferSize) {
+	    flush();
+	    if (!awaitRoom(bufferSize - 1, dropOverflow ? writeTimeout : 0)) {
+		droppedCount++;
+		return;
+	    }
+	}
+
+	int pending = out.size();
+	try {
+	    encoder.encode(event);
+	} catch (IOException e) {
+	    out.setSize(pending);
+	    errorHandler.error("Could not encode event", e,
+		    ErrorCode.WRITE_FAILURE);
+	    return;
+	}
+	out.write('\n');
+
+	if (out.size() >= batchSize) {
+	    flush();
+	}
+    }
+
+    /**
+     * Writes as much of the buffer as the connection takes without blocking.
+     */
+    private void flush() {
+	if (channel == null) {
+	    return;
+	}
+
+	ByteBufferOutputStream out = encoder.getOutput();
+	int size = out.size();
+	if (size == 0) {
+	    return;
+	}
+
+	int written;
+	try {
+	    written = channel.write(out.select(0, size));
+	} catch (IOException e) {
+	    out.setSize(size);
+	    connectionLost(e);
+	    return;
+	}
+	out.setSize(size);
+
+	if (written > 0) {
+	    partialLine = out.getBuffer().get(written - 1) != '\n';
+	    out.discard(written);
+	}
+    }
+
+    /**
+     * Waits for the connection to take enough bytes for at most
+     * <code>limit</code> bytes to be left, for up to <code>timeout</code>
+     * milliseconds or, if it is zero, for as long as it takes. While
+     * disconnected it waits for the connector, releasing the appender lock.
+     * Gives up once the appender is closed without a connection or the
+     * calling thread is interrupted, as by {@link AsyncAppender#close()}.
+     * 
+     * @return whether the buffer got down to <code>limit</code>.
+     */
+    private boolean awaitRoom(int limit, long timeout) {
+	ByteBufferOutputStream out = encoder.getOutput();
+	long deadline = timeout > 0 ? System.currentTimeMillis() + timeout
+		: Long.MAX_VALUE;
+	while (out.size() > limit) {
+	    long remaining = timeout > 0 ? deadline
+		    - System.currentTimeMillis() : 0;
+	    if ((timeout > 0 && remaining <= 0)
+		    || (channel == null && closed)
+		    || Thread.currentThread().isInterrupted()) {
+		return false;
+	    }
+
+	    if (channel == null) {
+		try {
+		    wait(remaining);
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		    return false;
+		}
+		continue;
+	    }
+
+	    try {
+		selector.select(remaining);
+		selector.selectedKeys().clear();
+	    } catch (IOException e) {
+		connectionLost(e);
+		continue;
+	    }
+	    flush();
+	}
+	return true;
+    }
+
+    private void connectionLost(IOException e) {
+	LogLog.warn("Detected problem with TCP connection: " + e);
+	closeChannel();
+	if (System.currentTimeMillis() - connectedAt >= maxReconnectionDelay) {
+	    // the connection was stable, reconnect right away
+	    backoff = 0;
+	}
+
+	if (partialLine) {
+	    // the receiver got the start of the first event, skip the rest of
+	    // it so the next connection starts on an event boundary
+	    ByteBufferOutputStream out = encoder.getOutput();
+	    ByteBuffer buffer = out.getBuffer();
+	    int size = out.size();
+	    int end = 0;
+	    while (end < size && buffer.get(end) != '\n') {
+		end++;
+	    }
+	    out.discard(Math.min(end + 1, size));
+	    partialLine = false;
+	}
+
+	if (!closed) {
+	    fireConnector();
+	}
+    }
+
+    private void closeChannel() {
+	if (selector != null) {
+	    try {
+		selector.close();
+	    } catch (IOException e) {
+		LogLog.error("Could not close selector.", e);
+	    }
+	    selector = null;
+	}
+
+	if (channel != null) {
+	    try {
+		channel.close();
+	    } catch (IOException e) {
+		LogLog.error("Could not close channel.", e);
+	    }
+	    channel = null;
+	}
+    }
+
+    void fireConnector() {
+	if (connector == null) {
+	    LogLog.debug("Starting a new connector thread.");
+	    connector = new Connector();
+	    connector.setDaemon(true);
+	    connector.setPriority(Thread.MIN_PRIORITY);
+	    connector.start();
+	}
+    }
+
+    /**
+     * Close this appender, writing what is still buffered for up to
+     * <code>writeTimeout</code> milliseconds.
+     */
+    public synchronized void close() {
+	if (closed) {
+	    return;
+	}
+
+	this.closed = true;
+	if (flusher != null) {
+	    flusher.interrupted = true;
+	    flusher.interrupt();
+	    flusher = null;
+	}
+
+	if (connector != null) {
+	    connector.interrupted = true;
+	    connector.interrupt();
+	    connector = null;
+	}
+
+	if (channel != null) {
+	    flush();
+	    awaitRoom(0, writeTimeout);
+	}
+	closeChannel();
+	// wake the callers waiting for a connection
+	notifyAll();
+    }
+
+    /**
+     * The TCPLogstashAppender does not use layouts. Hence, this method
+     * returns <code>false</code>.
+     */
+    public boolean requiresLayout() {
+	return false;
+    }
+
+    /**
+     * Returns the number of events dropped because the write buffer stayed
+     * full, with <b>Overflow</b> set to <code>drop</code> or while the
+     * appender was being closed.
+     */
+    public synchronized long getDroppedCount() {
+	return droppedCount;
+    }
+
+    /**
+     * The <b>RemoteHost</b> option takes a string value which should be the
+     * host name or ipaddress of the Logstash tcp input.
+     */
+    public void setRemoteHost(String host) {
+	address = UDPAppender.getAddressByName(host);
+	remoteHost = host;
+    }
+
+    /**
+     * Returns value of the <b>RemoteHost</b> option.
+     */
+    public String getRemoteHost() {
+	return remoteHost;
+    }
+
+    /**
+     * The <b>Port</b> option takes the port of the Logstash tcp input.
+     */
+    public void setPort(int port) {
+	this.port = port;
+    }
+
+    /**
+     * Returns value of the <b>Port</b> option.
+     */
+    public int getPort() {
+	return port;
+    }
+
+    public void setApplication(String application) {
+	this.application = application;
+	encoder.setApplication(application);
+    }
+
+    public String getApplication() {
+	return application;
+    }
+
+    public void setEnvironment(String environment) {
+	this.environment = environment;
+	encoder.setEnvironment(environment);
+    }
+
+    public String getEnvironment() {
+	return environment;
+    }
+
+    /**
+     * The <b>BufferSize</b> option takes the maximum number of bytes waiting
+     * to be written. The default is 256 KB.
+     */
+    public void setBufferSize(int bufferSize) {
+	this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Returns value of the <b>BufferSize</b> option.
+     */
+    public int getBufferSize() {
+	return bufferSize;
+    }
+
+    /**
+     * The <b>WriteTimeout</b> option takes the maximum number of milliseconds
+     * to wait for room in a full write buffer before dropping the event, with
+     * <b>Overflow</b> set to <code>drop</code>, and to write what is still
+     * buffered on close. The default is 1000.
+     */
+    public void setWriteTimeout(int writeTimeout) {
+	this.writeTimeout = writeTimeout;
+    }
+
+    /**
+     * Returns value of the <b>WriteTimeout</b> option.
+     */
+    public int getWriteTimeout() {
+	return writeTimeout;
+    }
+
+    /**
+     * The <b>BatchSize</b> option takes the number of buffered bytes that are
+     * written at once, without waiting for <b>LingerTime</b>. The default is
+     * 8192.
+     */
+    public void setBatchSize(int batchSize) {
+	this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns value of the <b>BatchSize</b> option.
+     */
+    public int getBatchSize() {
+	return batchSize;
+    }
+
+    /**
+     * The <b>Overflow</b> option takes what to do when the write buffer is
+     * full: <code>block</code> (the default) makes the caller wait for room as
+     * long as it takes, and <code>drop</code> drops the event after waiting
+     * <b>WriteTimeout</b> milliseconds.
+     */
+    public void setOverflow(String overflow) {
+	this.overflow = overflow;
+    }
+
+    /**
+     * Returns value of the <b>Overflow</b> option.
+     */
+    public String getOverflow() {
+	return overflow;
+    }
+
+    /**
+     * The <b>LingerTime</b> option takes the maximum number of milliseconds
+     * buffered events wait for a batch to fill up before being written, and
+     * between attempts to write bytes left over by a previous write. The
+     * default is 100.
+     */
+    public void setLingerTime(int lingerTime) {
+	this.lingerTime = lingerTime;
+    }
+
+    /**
+     * Returns value of the <b>LingerTime</b> option.
+     */
+    public int getLingerTime() {
+	return lingerTime;
+    }
+
+    /**
+     * The <b>MaxEventSize</b> option takes the maximum number of bytes of an
+     * encoded event. The default is 8192.
+     */
+    public void setMaxEventSize(int maxEventSize) {
+	this.maxEventSize = maxEventSize;
+    }
+
+    /**
+     * Returns value of the <b>MaxEventSize</b> option.
+     */
+    public int getMaxEventSize() {
+	return maxEventSize;
+    }
+
+    /**
+     * The <b>StackTraceWindow</b> option takes the number of milliseconds
+     * during which the stack trace of a fingerprint is sent only once; the
+     * repeats carry the <code>stack_fingerprint</code> and a
+     * <code>stack_repeat</code> count instead. The default is 60000 which
+     * corresponds to 1 minute; zero sends the stack trace with every event.
+     */
+    public void setStackTraceWindow(int stackTraceWindow) {
+	this.stackTraceWindow = stackTraceWindow;
+    }
+
+    /**
+     * Returns value of the <b>StackTraceWindow</b> option.
+     */
+    public int getStackTraceWindow() {
+	return stackTraceWindow;
+    }
+
+    /**
+     * The <b>StackTraceCacheSize</b> option takes the number of stack trace
+     * fingerprints remembered for the <b>StackTraceWindow</b>, the least
+     * recently seen being forgotten first. The default is 1024.
+     */
+    public void setStackTraceCacheSize(int stackTraceCacheSize) {
+	this.stackTraceCacheSize = stackTraceCacheSize;
+    }
+
+    /**
+     * Returns value of the <b>StackTraceCacheSize</b> option.
+     */
+    public int getStackTraceCacheSize() {
+	return stackTraceCacheSize;
+    }
+
+    /**
+     * The <b>PropertyFields</b> option, when true (the default), sends the MDC
+     * entries and properties of events as fields of their own, e.g. to carry
+     * a request id. Those named like one of the fixed fields are skipped.
+     */
+    public void setPropertyFields(boolean propertyFields) {
+	this.propertyFields = propertyFields;
+    }
+
+    /**
+     * Returns value of the <b>PropertyFields</b> option.
+     */
+    public boolean getPropertyFields() {
+	return propertyFields;
+    }
+
+    /**
+     * The <b>IncludeProperties</b> option takes a comma separated list of the
+     * MDC entries and properties sent as fields. By default all are sent.
+     */
+    public void setIncludeProperties(String includeProperties) {
+	this.includeProperties = includeProperties;
+    }
+
+    /**
+     * Returns value of the <b>IncludeProperties</b> option.
+     */
+    public String getIncludeProperties() {
+	return includeProperties;
+    }
+
+    /**
+     * The <b>ExcludeProperties</b> option takes a comma separated list of the
+     * MDC entries and properties never sent as fields. The default is
+     * <code>log4jmachinename,log4japp</code>.
+     */
+    public void setExcludeProperties(String excludeProperties) {
+	this.excludeProperties = excludeProperties;
+    }
+
+    /**
+     * Returns value of the <b>ExcludeProperties</b> option.
+     */
+    public String getExcludeProperties() {
+	return excludeProperties;
+    }
+
+    /**
+     * The <b>ReconnectionDelay</b> option takes the number of milliseconds to
+     * wait before the first reconnection attempt. It doubles after every
+     * failed attempt, up to <b>MaxReconnectionDelay</b>.
+     */
+    public void setReconnectionDelay(int delay) {
+	this.reconnectionDelay = delay;
+    }
+
+    /**
+     * Returns value of the <b>ReconnectionDelay</b> option.
+     */
+    public int getReconnectionDelay() {
+	return reconnectionDelay;
+    }
+
+    /**
+     * The <b>MaxReconnectionDelay</b> option takes the maximum number of
+     * milliseconds between reconnection attempts, and how long a connection
+     * has to stay up for the next reconnection to be attempted right away.
+     * The default is 30000.
+     */
+    public void setMaxReconnectionDelay(int delay) {
+	this.maxReconnectionDelay = delay;
+    }
+
+    /**
+     * Returns value of the <b>MaxReconnectionDelay</b> option.
+     */
+    public int getMaxReconnectionDelay() {
+	return maxReconnectionDelay;
+    }
+
+    /**
+     * Opens the connection in the background, retrying with an exponential
+     * backoff (with jitter, so many nodes do not reconnect in lockstep) until
+     * it succeeds. Starts from the backoff the previous connector left.
+     */
+    class Connector extends Thread {
+	boolean interrupted = false;
+
+	public void run() {
+	    long delay;
+	    synchronized (TCPLogstashAppender.this) {
+		delay = backoff;
+	    }
+
+	    while (!interrupted) {
+		SocketChannel socketChannel = null;
+		try {
+		    if (delay > 0) {
+			sleep(delay / 2 + (long) (random.nextDouble() * delay / 2));
+		    }
+		    delay = Math.min(Math.max(delay * 2, reconnectionDelay),
+			    maxReconnectionDelay);
+
+		    LogLog.debug("Attempting to connect to " + address + ":"
+			    + port);
+		    socketChannel = SocketChannel.open();
+		    socketChannel.socket().connect(
+			    new InetSocketAddress(address, port),
+			    CONNECT_TIMEOUT);
+		    socketChannel.configureBlocking(false);
+		    Selector writeSelector = Selector.open();
+		    socketChannel.register(writeSelector, SelectionKey.OP_WRITE);
+
+		    synchronized (TCPLogstashAppender.this) {
+			if (interrupted) {
+			    writeSelector.close();
+			    socketChannel.close();
+			    return;
+			}
+			channel = socketChannel;
+			selector = writeSelector;
+			connector = null;
+			backoff = delay;
+			connectedAt = System.currentTimeMillis();
+			// wake the callers waiting for a connection
+			TCPLogstashAppender.this.notifyAll();
+		    }
+		    return;
+		} catch (InterruptedException e) {
+		    LogLog.debug("Connector interrupted. Leaving loop.");
+
+		    return;
+		} catch (IOException e) {
+		    LogLog.debug("Could not connect to " + address + ":" + port
+			    + ". " + e);
+		    if (socketChannel != null) {
+			try {
+			    socketChannel.close();
+			} catch (IOException ignored) {
+			    // already failed
+			}
+		    }
+		}
+	    }
+	}
+    }
+
+    /**
+     * The Flusher writes the buffered events every <code>lingerTime</code>
+     * milliseconds, so events do not wait for a batch to fill up, or for the
+     * next event, to be sent.
+     */
+    class Flusher extends Thread {
+	boolean interrupted = false;
+
+	public void run() {
+	    while (!interrupted) {
+		try {
+		    sleep(lingerTime);
+		} catch (InterruptedException e) {
+		    return;
+		}
+
+		synchronized (TCPLogstashAppender.this) {
+		    if (!interrupted) {
+			flush();
+		    }
+		}
+	    }
+	}
+    }
+}
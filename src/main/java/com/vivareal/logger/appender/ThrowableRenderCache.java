@@ -0,0 +1,114 @@
+package com.vivareal.logger.appender;
+
+import java.lang.ref.WeakReference;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.spi.ThrowableInformation;
+
+/**
+ * Renders each logged throwable once, however many events and appenders it
+ * goes through.
+ * 
+ * <p>
+ * log4j renders the stack trace of every event on its own, and
+ * {@link ThrowableInformation#getThrowableStrRep()} copies the lines on every
+ * call. The same exception instance is often logged several times as it is
+ * rethrown and wrapped, so this cache keeps, per throwable instance, its
+ * rendered lines joined into a single string and its
+ * {@link StackTraceDeduplicator#fingerprint fingerprint}, each computed on
+ * first use. The events themselves are left untouched: the rendering is only
+ * shared through the cache.
+ * 
+ * <p>
+ * The cache is a fixed table indexed by identity hash, whose entries hold
+ * their throwable weakly: it never keeps an exception alive and a colliding
+ * throwable simply replaces the previous entry. Events without a throwable
+ * instance (e.g. received from a remote process) are rendered each time.
+ */
+final class ThrowableRenderCache {
+    /**
+     * Number of entries, a power of two.
+     */
+    static final int SIZE = 256;
+
+    private static final Entry[] ENTRIES = new Entry[SIZE];
+
+    private ThrowableRenderCache() {
+    }
+
+    /**
+     * Renders the throwable of <code>info</code> into the cache, if not there
+     * already, so later lookups on any thread hit.
+     */
+    static void render(ThrowableInformation info) {
+	entry(info);
+    }
+
+    /**
+     * Returns the throwable of <code>info</code> rendered as lines joined
+     * with <code>'\n'</code>.
+     */
+    static String joined(ThrowableInformation info) {
+	Entry entry = entry(info);
+	if (entry == null) {
+	    return StringUtils.join(info.getThrowableStrRep(), '\n');
+	}
+	String joined = entry.joined;
+	if (joined == null) {
+	    joined = StringUtils.join(entry.lines, '\n');
+	    entry.joined = joined;
+	}
+	return joined;
+    }
+
+    /**
+     * Returns the fingerprint of the throwable of <code>info</code>.
+     */
+    static String fingerprint(ThrowableInformation info) {
+	Entry entry = entry(info);
+	if (entry == null) {
+	    return StackTraceDeduplicator.fingerprint(info);
+	}
+	String fingerprint = entry.fingerprint;
+	if (fingerprint == null) {
+	    fingerprint = StackTraceDeduplicator.fingerprint(info);
+	    entry.fingerprint = fingerprint;
+	}
+	return fingerprint;
+    }
+
+    /**
+     * Returns the entry of the throwable of <code>info</code>, rendering it
+     * on a miss, or null if there is no throwable instance.
+     */
+    private static Entry entry(ThrowableInformation info) {
+	Throwable throwable = info.getThrowable();
+	if (throwable == null) {
+	    return null;
+	}
+	int slot = System.identityHashCode(throwable) & (SIZE - 1);
+	Entry entry = ENTRIES[slot];
+	if (entry == null || entry.get() != throwable) {
+	    entry = new Entry(throwable, info.getThrowableStrRep());
+	    ENTRIES[slot] = entry;
+	}
+	return entry;
+    }
+
+    /**
+     * Rendered forms of a throwable. The table is read and written without
+     * locking; the final lines are safely published with the entry and the
+     * lazily computed strings are immutable, so a racing thread at worst
+     * computes them again.
+     */
+    private static final class Entry extends WeakReference<Throwable> {
+	final String[] lines;
+	volatile String joined;
+	volatile String fingerprint;
+
+	Entry(Throwable throwable, String[] lines) {
+	    super(throwable);
+	    this.lines = lines;
+	}
+    }
+}
@@ -1,28 +1,57 @@
 package com.vivareal.logger.appender;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.LinkedList;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.zip.Deflater;
 
 import org.apache.log4j.FileAppender;
 import org.apache.log4j.Layout;
-import org.apache.log4j.helpers.CountingQuietWriter;
+import org.apache.log4j.Level;
 import org.apache.log4j.helpers.LogLog;
 import org.apache.log4j.helpers.OptionConverter;
+import org.apache.log4j.helpers.QuietWriter;
 import org.apache.log4j.spi.ErrorCode;
 import org.apache.log4j.spi.LoggingEvent;
 
 public class TimeSizeRollingFileAppender extends FileAppender implements
 	ErrorCode {
     private static String BACKUP_SUFFIX = ".bak";
+
+    /**
+     * Suffix of a file that was just rolled over and is waiting for the
+     * archiver to give it its backup name.
+     */
+    static final String ROLLING_SUFFIX = ".rolling";
+
+    /**
+     * Follows the sequence number of a file staged by a rollover for time,
+     * and is itself followed by the date suffix of the period it was rolled
+     * from, so the rollover can be carried out again after a restart.
+     */
+    static final String TIME_ROLLING_MARK = ".time";
+
+    /**
+     * Rolled files are renamed to <code>File.1</code> to
+     * <code>File.MaxBackupIndex</code> and then to dated names.
+     */
+    public static final String RENAME = "rename";
+
+    /**
+     * Output goes to numbered segments that are never renamed.
+     */
+    public static final String SEGMENT = "segment";
+
     private static String LOG_ROOT_PATH = ".";
 
     public static void setLogRootPath(String logRootPath) {
@@ -43,6 +72,59 @@ public class TimeSizeRollingFileAppender extends FileAppender implements
      */
     protected int maxBackupIndex = 1;
 
+    /**
+     * Buffered output is flushed at least this often, in milliseconds. Zero
+     * does not flush on time.
+     */
+    int flushInterval = 0;
+
+    /**
+     * Buffered output is flushed once it reaches this many bytes. Zero does
+     * not flush on size.
+     */
+    int flushSize = 0;
+
+    /**
+     * Events of this level or above are flushed and forced to the storage
+     * device immediately, with everything buffered before them.
+     */
+    Level forceLevel;
+
+    /**
+     * Size of the current file when its output was last flushed.
+     */
+    private long flushedCount;
+
+    private Flusher flusher;
+
+    /**
+     * How rolled files are compressed: <code>none</code> or
+     * <code>gzip</code>.
+     */
+    String compression = PayloadCompressor.NONE;
+
+    int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    private RolledFileCompressor compressor;
+
+    Archiver archiver;
+
+    /**
+     * Numbers the files waiting for the archiver, from the time the appender
+     * was activated so they stay unique across restarts.
+     */
+    private long rollSequence;
+
+    String naming = RENAME;
+
+    private boolean segmentNaming;
+
+    /**
+     * Index of the segment being written in the current period, when
+     * segments are used.
+     */
+    private int segmentIndex;
+
     // The code assumes that the following constants are in a increasing
     // sequence.
     static final int TOP_OF_TROUBLE = -1;
@@ -77,7 +159,21 @@ public class TimeSizeRollingFileAppender extends FileAppender implements
     /**
      * The next time we estimate a rollover should occur.
      */
-    private long nextCheck = System.currentTimeMillis() - 1;
+    private long nextCheck;
+
+    /**
+     * Set by the clock once <code>nextCheck</code> is reached, so events do
+     * not have to read the time to find out whether to roll over.
+     */
+    private volatile boolean timeRolloverDue = true;
+
+    private final CoarseClock.BoundaryListener rolloverListener = new CoarseClock.BoundaryListener() {
+	public void boundaryReached(long time) {
+	    timeRolloverDue = true;
+	}
+    };
+
+    CoarseClock clock = CoarseClock.shared();
 
     Date now = new Date();
 
@@ -92,6 +188,12 @@ public class TimeSizeRollingFileAppender extends FileAppender implements
 
     private File currFile;
 
+    /**
+     * Writes to the current file and counts its size, under
+     * <code>qw</code>.
+     */
+    FileChannelWriter channelWriter;
+
     /**
      * The default constructor does nothing.
      */
@@ -174,19 +276,23 @@ public class TimeSizeRollingFileAppender extends FileAppender implements
 		setImmediateFlush(false);
 	    }
 
-	    Writer fw = createWriter(new FileOutputStream(fileName, append));
-	    if (bufferedIO) {
-		fw = new BufferedWriter(fw, bufferSize);
-	    }
-	    this.setQWForFiles(fw);
+	    String path = segmentNaming ? segmentName(scheduledFilename,
+		    segmentIndex) : fileName;
+	    FileOutputStream ostream = new FileOutputStream(path, append);
+	    channelWriter = new FileChannelWriter(ostream.getChannel(),
+		    getCharset(), bufferedIO ? bufferSize
+			    : FileChannelWriter.DEFAULT_BUFFER_SIZE);
+	    this.setQWForFiles(channelWriter);
 	    this.fileAppend = append;
 	    this.bufferedIO = bufferedIO;
 	    this.bufferSize = bufferSize;
 	    writeHeader();
+	    flushedCount = 0;
 
 	    if (append) {
-		currFile = new File(fileName);
-		((CountingQuietWriter) qw).setCount(currFile.length());
+		currFile = new File(path);
+		channelWriter.setCount(currFile.length());
+		flushedCount = currFile.length();
 	    }
 	    LogLog.debug("setFile ended");
 	} catch (IOException e) {
@@ -195,17 +301,63 @@ public class TimeSizeRollingFileAppender extends FileAppender implements
     }
 
     public void activateOptions() {
+	if (flushInterval > 0 || flushSize > 0) {
+	    // Group commit replaces the flush after every event.
+	    setImmediateFlush(false);
+	}
+	segmentNaming = SEGMENT.equalsIgnoreCase(naming);
+	if (segmentNaming && datePattern != null && fileName != null) {
+	    // The segment to write to is known before the file is opened.
+	    now.setTime(clock.currentTimeMillis());
+	    scheduledFilename = fileName + new SimpleDateFormat(datePattern)
+		    .format(now);
+	    segmentIndex = findLastSegment();
+	}
 	super.activateOptions();
+	if (flushInterval > 0 && flusher == null) {
+	    flusher = new Flusher();
+	    flusher.setDaemon(true);
+	    flusher.setName("TimeSizeRollingFileAppender-Flusher-"
+		    + flusher.getName());
+	    flusher.start();
+	}
+	if (PayloadCompressor.GZIP.equalsIgnoreCase(compression)) {
+	    compressor = new RolledFileCompressor(compressionLevel);
+	} else {
+	    compressor = null;
+	    if (!PayloadCompressor.NONE.equalsIgnoreCase(compression)) {
+		LogLog.warn("Unknown compression [" + compression
+			+ "] for appender [" + name + "], not compressing.");
+	    }
+	}
+	if (archiver == null) {
+	    archiver = new Archiver();
+	    archiver.setDaemon(true);
+	    archiver.setPriority(Thread.MIN_PRIORITY);
+	    archiver.setName("TimeSizeRollingFileAppender-Archiver-"
+		    + archiver.getName());
+	    archiver.start();
+	}
+	rollSequence = System.currentTimeMillis();
 	if (datePattern != null && fileName != null) {
-	    now.setTime(System.currentTimeMillis());
+	    now.setTime(clock.currentTimeMillis());
+	    timeRolloverDue = true;
 	    sdf = new SimpleDateFormat(datePattern);
 	    int type = computeCheckPeriod();
 	    printPeriodicity(type);
 	    rc.setType(type);
-	    currFile = new File(fileName);
-	    scheduledFilename = fileName
-		    + sdf.format(new Date(currFile.lastModified()));
+	    if (!segmentNaming) {
+		// A file with content belongs to the period it was last written
+		// in, but never to one after the clock's.
+		currFile = new File(fileName);
+		long period = clock.currentTimeMillis();
+		if (currFile.length() > 0) {
+		    period = Math.min(currFile.lastModified(), period);
+		}
+		scheduledFilename = fileName + sdf.format(new Date(period));
+	    }
 	    LogLog.debug("scheduledFilename generated:" + scheduledFilename);
+	    recoverRolledFiles();
 	} else {
 	    LogLog.error("Either File or DatePattern options are not set for appender ["
 		    + name + "].");
@@ -244,8 +396,416 @@ public class TimeSizeRollingFileAppender extends FileAppender implements
 	maxFileSize = value;
     }
 
+    /**
+     * The <b>FlushInterval</b> option takes the maximum number of milliseconds
+     * buffered output waits before being flushed, bounding how much is lost
+     * if the process dies. Setting it or <b>FlushSize</b> turns off
+     * <b>ImmediateFlush</b>. Zero (the default) does not flush on time.
+     */
+    public void setFlushInterval(int flushInterval) {
+	this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Returns value of the <b>FlushInterval</b> option.
+     */
+    public int getFlushInterval() {
+	return flushInterval;
+    }
+
+    /**
+     * The <b>FlushSize</b> option takes the number of bytes after which
+     * buffered output is flushed, whichever comes first with
+     * <b>FlushInterval</b>. Zero (the default) does not flush on size.
+     */
+    public void setFlushSize(int flushSize) {
+	this.flushSize = flushSize;
+    }
+
+    /**
+     * Returns value of the <b>FlushSize</b> option.
+     */
+    public int getFlushSize() {
+	return flushSize;
+    }
+
+    /**
+     * The <b>ForceLevel</b> option takes the level from which an event is
+     * flushed immediately, along with everything buffered before it, and
+     * forced to the storage device. It is not set by default.
+     */
+    public void setForceLevel(Level forceLevel) {
+	this.forceLevel = forceLevel;
+    }
+
+    /**
+     * Returns value of the <b>ForceLevel</b> option.
+     */
+    public Level getForceLevel() {
+	return forceLevel;
+    }
+
+    /**
+     * Writes the buffered output to the file, forcing it to the storage
+     * device if <code>force</code> is set.
+     */
+    void flushBuffer(boolean force) {
+	qw.flush();
+	if (force) {
+	    try {
+		channelWriter.force();
+	    } catch (IOException e) {
+		errorHandler.error("Failed to force log file to disk.", e,
+			FLUSH_FAILURE);
+	    }
+	}
+	flushedCount = channelWriter.getCount();
+    }
+
+    /**
+     * The <b>Naming</b> option takes <code>rename</code> (the default) or
+     * <code>segment</code>. With <code>segment</code>, output goes to
+     * <code>File</code> followed by the <b>DatePattern</b> of the period and a
+     * segment index, e.g. <code>app.log.2014-06-11.3</code>. A size rollover
+     * opens the next index and a time rollover index 1 of the new period, so
+     * no file is ever renamed. The <b>MaxBackupIndex</b> segments before the
+     * current one are kept in each period and older ones deleted. On start,
+     * writing resumes in the last segment of the period.
+     */
+    public void setNaming(String naming) {
+	this.naming = naming;
+    }
+
+    /**
+     * Returns value of the <b>Naming</b> option.
+     */
+    public String getNaming() {
+	return naming;
+    }
+
+    /**
+     * The <b>Compression</b> option takes <code>none</code> (the default) or
+     * <code>gzip</code>. With <code>gzip</code>, rolled files are compressed
+     * to <code>name.gz</code> by the low-priority archiver thread, never by
+     * the logging thread. Rolled files left uncompressed, or half compressed,
+     * when the application stopped are compressed when it starts again.
+     */
+    public void setCompression(String compression) {
+	this.compression = compression;
+    }
+
+    /**
+     * Returns value of the <b>Compression</b> option.
+     */
+    public String getCompression() {
+	return compression;
+    }
+
+    /**
+     * The <b>CompressionLevel</b> option takes the deflate level, from 0 to
+     * 9. The default is -1, zlib's default level.
+     */
+    public void setCompressionLevel(int compressionLevel) {
+	this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Returns value of the <b>CompressionLevel</b> option.
+     */
+    public int getCompressionLevel() {
+	return compressionLevel;
+    }
+
+    /**
+     * Deletes the temporary files of compressions that did not finish, and
+     * hands the archiver the files that were rolled over but not renamed and
+     * the backups left uncompressed when the application stopped. A file
+     * waiting for its backup name is rolled again for time or for size, as
+     * recorded in its name, in the order the files were staged.
+     */
+    void recoverRolledFiles() {
+	File active = new File(fileName).getAbsoluteFile();
+	File dir = active.getParentFile();
+	String[] names = dir.list();
+	if (names == null) {
+	    return;
+	}
+	Arrays.sort(names);
+	String prefix = active.getName() + ".";
+	LinkedList<File> rolling = new LinkedList<File>();
+	for (int i = 0; i < names.length; i++) {
+	    if (!names[i].startsWith(prefix)) {
+		continue;
+	    }
+	    final File file = new File(dir, names[i]);
+	    String suffix = names[i].substring(prefix.length());
+	    if (suffix.endsWith(RolledFileCompressor.TEMP_SUFFIX)) {
+		LogLog.debug("Deleting unfinished compression " + file);
+		file.delete();
+	    } else if (suffix.endsWith(ROLLING_SUFFIX)) {
+		rolling.add(file);
+	    } else if (segmentNaming) {
+		recoverSegment(file);
+	    } else if (compressor != null
+		    && (suffix.endsWith(BACKUP_SUFFIX) || isIndex(suffix))) {
+		archiver.add(new Runnable() {
+		    public void run() {
+			compress(file);
+		    }
+		});
+	    }
+	}
+	while (!rolling.isEmpty()) {
+	    final File file = rolling.removeFirst();
+	    String suffix = file.getName().substring(prefix.length(),
+		    file.getName().length() - ROLLING_SUFFIX.length());
+	    int mark = suffix.indexOf(TIME_ROLLING_MARK);
+	    if (mark < 0) {
+		archiver.add(new Runnable() {
+		    public void run() {
+			rollSizeBackups(file);
+		    }
+		});
+	    } else {
+		final String rolledFilename = fileName
+			+ suffix.substring(mark + TIME_ROLLING_MARK.length());
+		archiver.add(new Runnable() {
+		    public void run() {
+			rollTimeBackups(file, rolledFilename);
+		    }
+		});
+	    }
+	}
+    }
+
+    static String segmentName(String periodFilename, int index) {
+	return periodFilename + "." + index;
+    }
+
+    /**
+     * Returns the index of <code>name</code> as a segment of the period
+     * named <code>periodName</code>, compressed or not, or -1 if it is not
+     * one.
+     */
+    static int segmentIndex(String name, String periodName) {
+	if (!name.startsWith(periodName + ".")) {
+	    return -1;
+	}
+	String index = name.substring(periodName.length() + 1);
+	if (index.endsWith(RolledFileCompressor.SUFFIX)) {
+	    index = index.substring(0, index.length()
+		    - RolledFileCompressor.SUFFIX.length());
+	}
+	if (!isIndex(index) || index.length() > 9) {
+	    return -1;
+	}
+	return Integer.parseInt(index);
+    }
+
+    /**
+     * Returns the index of the segment to resume writing to in the current
+     * period: the last one, unless it is already compressed.
+     */
+    int findLastSegment() {
+	File period = new File(scheduledFilename).getAbsoluteFile();
+	String[] names = period.getParentFile().list();
+	int last = 0;
+	boolean compressed = false;
+	for (int i = 0; names != null && i < names.length; i++) {
+	    int index = segmentIndex(names[i], period.getName());
+	    if (index > last
+		    || (index == last && !names[i]
+			    .endsWith(RolledFileCompressor.SUFFIX))) {
+		last = index;
+		compressed = names[i].endsWith(RolledFileCompressor.SUFFIX);
+	    }
+	}
+	return last == 0 || compressed ? last + 1 : last;
+    }
+
+    /**
+     * Deletes the segment of the current period that falls out of the
+     * <b>MaxBackupIndex</b> segments kept before <code>current</code>, and
+     * compresses the one before it. Runs on the archiver thread.
+     */
+    void rollSegments(String periodFilename, int current) {
+	int expired = current - Math.max(maxBackupIndex, 0) - 1;
+	if (expired >= 1) {
+	    LogLog.debug("Deleting segment " + expired + " of "
+		    + periodFilename);
+	    deleteBackup(segmentName(periodFilename, expired));
+	}
+	if (current > 1 && maxBackupIndex > 0) {
+	    compress(new File(segmentName(periodFilename, current - 1)));
+	}
+    }
+
+    /**
+     * Deletes a segment of the current period that is out of the kept ones,
+     * or compresses a segment that is no longer written to.
+     */
+    private void recoverSegment(final File file) {
+	String name = file.getName();
+	String period = new File(scheduledFilename).getName();
+	int index = segmentIndex(name, period);
+	if (index > 0 && index < segmentIndex - Math.max(maxBackupIndex, 0)) {
+	    LogLog.debug("Deleting expired segment " + file);
+	    file.delete();
+	    return;
+	}
+	if (compressor == null || index == segmentIndex
+		|| name.endsWith(RolledFileCompressor.SUFFIX)) {
+	    return;
+	}
+	int dot = name.lastIndexOf('.');
+	if (index > 0 || isIndex(name.substring(dot + 1))
+		|| name.endsWith(BACKUP_SUFFIX)) {
+	    archiver.add(new Runnable() {
+		public void run() {
+		    compress(file);
+		}
+	    });
+	}
+    }
+
+    private static boolean isIndex(String suffix) {
+	for (int i = 0; i < suffix.length(); i++) {
+	    if (!Character.isDigit(suffix.charAt(i))) {
+		return false;
+	    }
+	}
+	return suffix.length() > 0;
+    }
+
+    /**
+     * Renames the current file out of the way so a fresh one can be opened,
+     * leaving the rest of the rollover to the archiver. A rollover for time
+     * passes the dated name of the rolled period, which is kept in the
+     * temporary name, and a rollover for size passes <code>null</code>.
+     * Returns the renamed file, or <code>null</code> if it could not be
+     * renamed.
+     */
+    File stageRolledFile(String rolledFilename) {
+	File file = new File(fileName);
+	String mark = rolledFilename == null ? "" : TIME_ROLLING_MARK
+		+ rolledFilename.substring(fileName.length());
+	File staged = new File(fileName + "." + (rollSequence++) + mark
+		+ ROLLING_SUFFIX);
+	if (file.renameTo(staged)) {
+	    LogLog.debug(fileName + " -> " + staged);
+	    return staged;
+	}
+	LogLog.error("Failed to rename [" + fileName + "] to [" + staged + "].");
+	return null;
+    }
+
+    /**
+     * Shifts the size backups up by one, deleting the oldest, and makes the
+     * rolled file <code>File.1</code>. Runs on the archiver thread.
+     */
+    void rollSizeBackups(File staged) {
+	// Delete the oldest file, to keep Windows happy.
+	deleteBackup(fileName + '.' + maxBackupIndex);
+	// Map {(maxBackupIndex - 1), ..., 2, 1} to {maxBackupIndex, ..., 3, 2}
+	for (int i = maxBackupIndex - 1; i >= 1; i--) {
+	    renameBackup(fileName + "." + i, fileName + '.' + (i + 1));
+	}
+	File target = new File(fileName + "." + 1);
+	LogLog.debug("Renaming file " + staged + " to " + target);
+	if (staged.renameTo(target)) {
+	    compress(target);
+	} else {
+	    LogLog.error("Failed to rename [" + staged + "] to [" + target
+		    + "].");
+	}
+    }
+
+    /**
+     * Gives the file rolled over for time, and the size backups of its
+     * period, their dated backup names. Runs on the archiver thread.
+     */
+    void rollTimeBackups(File staged, String rolledFilename) {
+	File target = new File(rolledFilename + BACKUP_SUFFIX);
+	deleteBackup(target.getPath());
+	for (int i = 1; i <= maxBackupIndex; i++) { // roll for all size-backup
+	    // files
+	    String after = rolledFilename + "." + i + BACKUP_SUFFIX;
+	    deleteBackup(after);
+	    compress(renameBackup(fileName + "." + i, after));
+	}
+	if (staged == null) {
+	    return;
+	}
+	if (staged.renameTo(target)) {
+	    LogLog.debug(staged + " -> " + target);
+	    compress(target);
+	} else {
+	    LogLog.error("Failed to rename [" + staged + "] to [" + target
+		    + "].");
+	}
+    }
+
+    /**
+     * Deletes the backup named <code>name</code>, compressed or not.
+     */
+    private void deleteBackup(String name) {
+	new File(name).delete();
+	new File(name + RolledFileCompressor.SUFFIX).delete();
+    }
+
+    /**
+     * Renames the backup <code>before</code> to <code>after</code>, keeping its
+     * compression suffix. Returns the renamed file if it is not compressed.
+     */
+    private File renameBackup(String before, String after) {
+	File renamed = null;
+	File file = new File(before);
+	if (file.exists()) { // only backup existed one
+	    File target = new File(after);
+	    if (file.renameTo(target)) {
+		LogLog.debug(before + " -> " + after);
+		renamed = target;
+	    } else {
+		LogLog.error("Failed to rename [" + before + "] to [" + after
+			+ "].");
+	    }
+	}
+	file = new File(before + RolledFileCompressor.SUFFIX);
+	if (file.exists()) {
+	    file.renameTo(new File(after + RolledFileCompressor.SUFFIX));
+	}
+	return renamed;
+    }
+
+    /**
+     * Compresses a rolled file on the archiver thread, if rolled files are
+     * compressed.
+     */
+    void compress(File file) {
+	if (compressor != null && file != null && file.exists()) {
+	    compressor.compress(file);
+	}
+    }
+
     protected void setQWForFiles(Writer writer) {
-	this.qw = new CountingQuietWriter(writer, errorHandler);
+	this.qw = new QuietWriter(writer, errorHandler);
+    }
+
+    /**
+     * Returns the charset named by the <b>Encoding</b> option, or the
+     * platform default if it is not set or not supported.
+     */
+    Charset getCharset() {
+	String encoding = getEncoding();
+	if (encoding != null) {
+	    try {
+		return Charset.forName(encoding);
+	    } catch (IllegalArgumentException e) {
+		LogLog.warn("Error initializing output writer.");
+		LogLog.warn("Unsupported encoding?");
+	    }
+	}
+	return Charset.defaultCharset();
     }
 
     void printPeriodicity(int type) {
@@ -312,6 +872,10 @@ public class TimeSizeRollingFileAppender extends FileAppender implements
 
     /**
      * Rollover the current file to a new file.
+     * <p>
+     * Only the current file is renamed on the logging thread. Giving it its
+     * dated name and renaming the size backups of the period is left to the
+     * archiver.
      */
     public void rollOverForTime() throws IOException {
 
@@ -330,43 +894,31 @@ public class TimeSizeRollingFileAppender extends FileAppender implements
 	    return;
 	}
 
-	// close current file, and rename it to datedFilename
-	this.closeFile();
-
-	File target = new File(scheduledFilename + BACKUP_SUFFIX);
-	if (target.exists()) {
-	    target.delete();
-	}
-
-	File file = new File(fileName);
-	for (int i = 1; i <= maxBackupIndex; i++) { // roll for all size-backup
-	    // files
-	    String before = fileName + "." + i;
-	    File files = new File(before);
-	    String after = scheduledFilename + "." + i + BACKUP_SUFFIX;
-	    File targets = new File(after);
-	    if (targets.exists()) {
-		targets.delete();
-	    }
-	    if (files.exists()) { // only backup existed one
-		boolean result = files.renameTo(targets);
-		if (result) {
-		    LogLog.debug(before + " -> " + after);
-		} else {
-		    LogLog.error("Failed to rename [" + before + "] to ["
-			    + after + "].");
+	if (segmentNaming) {
+	    this.closeFile();
+	    final String rolledFilename = scheduledFilename;
+	    final int rolledIndex = segmentIndex;
+	    scheduledFilename = datedFilename;
+	    segmentIndex = 1;
+	    archiver.add(new Runnable() {
+		public void run() {
+		    compress(new File(segmentName(rolledFilename, rolledIndex)));
 		}
-	    }
+	    });
+	    this.setFile(fileName, false, this.bufferedIO, this.bufferSize);
+	    LogLog.debug("scheduledFilename after roll:" + scheduledFilename);
+	    return;
 	}
 
-	// rename current writting file is necessary
-	boolean result = file.renameTo(target);
-	if (result) {
-	    LogLog.debug(fileName + " -> " + scheduledFilename);
-	} else {
-	    LogLog.error("Failed to rename [" + fileName + "] to ["
-		    + scheduledFilename + "].");
-	}
+	// close current file, and move it out of the way
+	this.closeFile();
+	final String rolledFilename = scheduledFilename;
+	final File staged = stageRolledFile(rolledFilename);
+	archiver.add(new Runnable() {
+	    public void run() {
+		rollTimeBackups(staged, rolledFilename);
+	    }
+	});
 
 	try {
 	    // This will also close the file. This is OK since multiple
@@ -386,46 +938,37 @@ public class TimeSizeRollingFileAppender extends FileAppender implements
      * <code>File.1</code>, ..., <code>File.MaxBackupIndex -1</code> are renamed
      * to {<code>File.2</code>, ..., <code>File.MaxBackupIndex</code> .
      * Moreover, <code>File</code> is renamed <code>File.1</code> and closed. A
-     * new <code>File</code> is created to receive further log output.
+     * new <code>File</code> is created to receive further log output. Only
+     * <code>File</code> is renamed on the logging thread, to a temporary name
+     * it keeps until the archiver has shifted the backups.
      * <p>
      * If <code>MaxBackupIndex</code> is equal to zero, then the
      * <code>File</code> is truncated with no backup files created.
      */
     public void rollOverForSize() { // synchronization not necessary since
 	// doAppend is alreasy synched
-	File target;
-	File file;
-
-	LogLog.debug("rolling over count="
-		+ ((CountingQuietWriter) qw).getCount());
+	LogLog.debug("rolling over count=" + channelWriter.getCount());
 	LogLog.debug("maxBackupIndex=" + maxBackupIndex);
-	// If maxBackups <= 0, then there is no file renaming to be done.
-	if (maxBackupIndex > 0) {
-	    // Delete the oldest file, to keep Windows happy.
-	    file = new File(fileName + '.' + maxBackupIndex);
-	    if (file.exists()) {
-		file.delete();
-
-		// Map {(maxBackupIndex - 1), ..., 2, 1} to {maxBackupIndex,
-		// ..., 3, 2}
-	    }
-	    for (int i = maxBackupIndex - 1; i >= 1; i--) {
-		file = new File(fileName + "." + i);
-		if (file.exists()) {
-		    target = new File(fileName + '.' + (i + 1));
-		    LogLog.debug("Renaming file " + file + " to " + target);
-		    file.renameTo(target);
+	if (segmentNaming) {
+	    this.closeFile();
+	    final String periodFilename = scheduledFilename;
+	    final int current = ++segmentIndex;
+	    archiver.add(new Runnable() {
+		public void run() {
+		    rollSegments(periodFilename, current);
 		}
-	    }
-
-	    // Rename fileName to fileName.1
-	    target = new File(fileName + "." + 1);
-
+	    });
+	} else if (maxBackupIndex > 0) {
+	    // If maxBackups <= 0, then there is no file renaming to be done.
 	    this.closeFile(); // keep windows happy.
-
-	    file = new File(fileName);
-	    LogLog.debug("Renaming file " + file + " to " + target);
-	    file.renameTo(target);
+	    final File staged = stageRolledFile(null);
+	    if (staged != null) {
+		archiver.add(new Runnable() {
+		    public void run() {
+			rollSizeBackups(staged);
+		    }
+		});
+	    }
 	}
 
 	try {
@@ -437,24 +980,65 @@ public class TimeSizeRollingFileAppender extends FileAppender implements
 	}
     }
 
+    /**
+     * Stops the flusher and the archiver, then closes the file. Rollovers and
+     * compressions still queued are dropped and carried out on the next
+     * start, from the files they left behind.
+     * The threads are joined outside the appender lock, which the flusher
+     * takes.
+     */
+    public void close() {
+	Flusher stoppedFlusher;
+	Archiver stoppedArchiver;
+	synchronized (this) {
+	    clock.cancel(rolloverListener);
+	    stoppedFlusher = flusher;
+	    stoppedArchiver = archiver;
+	    flusher = null;
+	    archiver = null;
+	}
+	if (stoppedFlusher != null) {
+	    stoppedFlusher.interrupted = true;
+	    stoppedFlusher.interrupt();
+	}
+	if (stoppedArchiver != null) {
+	    stoppedArchiver.interrupted = true;
+	    stoppedArchiver.interrupt();
+	}
+	join(stoppedFlusher);
+	join(stoppedArchiver);
+	super.close();
+    }
+
+    private static void join(Thread thread) {
+	if (thread == null) {
+	    return;
+	}
+	try {
+	    thread.join();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
     /**
      * This method differentiates TimeSizeRollingFileAppender from its super
      * class.
      * 
      * <p>
-     * Before actually logging, this method will check whether it is time to do
-     * a rollover. If it is, it will schedule the next rollover time and then
-     * rollover.
+     * Before actually logging, this method will check whether the clock has
+     * reached the scheduled rollover time. If it has, it will schedule the
+     * next rollover time and then rollover.
      */
     protected void subAppend(LoggingEvent event) {
-	if ((fileName != null)
-		&& ((CountingQuietWriter) qw).getCount() >= maxFileSize) {
+	if ((fileName != null) && channelWriter.getCount() >= maxFileSize) {
 	    rollOverForSize();
 	}
-	long n = System.currentTimeMillis();
-	if (n >= nextCheck) {
-	    now.setTime(n);
+	if (timeRolloverDue) {
+	    timeRolloverDue = false;
+	    now.setTime(clock.currentTimeMillis());
 	    nextCheck = rc.getNextCheckMillis(now);
+	    clock.notifyAt(nextCheck, rolloverListener);
 	    try {
 		rollOverForTime();
 	    } catch (IOException ioe) {
@@ -464,6 +1048,73 @@ public class TimeSizeRollingFileAppender extends FileAppender implements
 	// @CheckItem@ OPT-yanfeng-20030909 remove file exist check while
 	// logging for better effencience
 	super.subAppend(event);
+	if (forceLevel != null && event.getLevel().isGreaterOrEqual(forceLevel)) {
+	    flushBuffer(true);
+	} else if (flushSize > 0
+		&& channelWriter.getCount() - flushedCount >= flushSize) {
+	    flushBuffer(false);
+	}
+    }
+
+    /**
+     * Carries out the rollovers, renaming and deleting backups and
+     * compressing them, one at a time and in the order the files were
+     * rolled. Files still waiting when the appender is closed are handled on
+     * the next start.
+     */
+    class Archiver extends Thread {
+	boolean interrupted = false;
+
+	private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+	synchronized void add(Runnable task) {
+	    tasks.addLast(task);
+	    notify();
+	}
+
+	public void run() {
+	    while (!interrupted) {
+		Runnable task;
+		synchronized (this) {
+		    while (tasks.isEmpty()) {
+			try {
+			    wait();
+			} catch (InterruptedException e) {
+			    return;
+			}
+		    }
+		    task = tasks.removeFirst();
+		}
+		try {
+		    task.run();
+		} catch (RuntimeException e) {
+		    LogLog.error("Rolled file handling failed.", e);
+		}
+	    }
+	}
+    }
+
+    class Flusher extends Thread {
+	boolean interrupted = false;
+
+	public void run() {
+	    while (!interrupted) {
+		try {
+		    sleep(flushInterval);
+		} catch (InterruptedException e) {
+		    return;
+		}
+
+		synchronized (TimeSizeRollingFileAppender.this) {
+		    if (interrupted) {
+			continue;
+		    }
+		    if (qw != null && channelWriter.getCount() > flushedCount) {
+			flushBuffer(false);
+		    }
+		}
+	    }
+	}
     }
 }
 
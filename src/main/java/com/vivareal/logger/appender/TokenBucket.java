@@ -0,0 +1,45 @@
+package com.vivareal.logger.appender;
+
+/**
+ * A token bucket refilled at a steady rate, used to pace sends.
+ * 
+ * <p>
+ * Taking is allowed while any token is left and may leave the bucket in
+ * debt, so a single take larger than the bucket (a big datagram against a
+ * bytes per second budget) still goes through and just delays the next
+ * ones. The average rate is kept either way.
+ * 
+ * <p>
+ * Not thread safe, used under the appender lock.
+ */
+final class TokenBucket {
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long last;
+
+    /**
+     * Creates a full bucket of <code>capacity</code> tokens refilled with
+     * <code>rate</code> tokens per second.
+     */
+    TokenBucket(long rate, long capacity) {
+	this.tokensPerNano = rate / 1e9;
+	this.capacity = Math.max(capacity, 1);
+	this.tokens = this.capacity;
+	this.last = System.nanoTime();
+    }
+
+    /**
+     * Refills the bucket up to <code>now</code> (from
+     * {@link System#nanoTime()}) and returns whether tokens can be taken.
+     */
+    boolean ready(long now) {
+	tokens = Math.min(capacity, tokens + (now - last) * tokensPerNano);
+	last = now;
+	return tokens > 0;
+    }
+
+    void take(long count) {
+	tokens -= count;
+    }
+}
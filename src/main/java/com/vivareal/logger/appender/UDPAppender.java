@@ -50,14 +50,13 @@ package com.vivareal.logger.appender;
  */
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.TimeZone;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.zip.Deflater;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.AppenderSkeleton;
@@ -65,7 +64,6 @@ import org.apache.log4j.helpers.LogLog;
 import org.apache.log4j.net.SocketAppender;
 import org.apache.log4j.spi.LoggingEvent;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.vivareal.logger.LogstashEvent;
 
 /**
@@ -87,6 +85,62 @@ import com.vivareal.logger.LogstashEvent;
  * listen for log messages.
  * 
  * <p>
+ * Datagrams are written through a connected {@link DatagramChannel} straight
+ * from a reusable direct buffer the events are encoded into.
+ * 
+ * <p>
+ * By default every event is sent in its own datagram. Setting the
+ * <b>MaxPacketSize</b> option turns on batching: events are packed as
+ * newline-terminated JSON lines (as expected by Logstash's
+ * <code>json_lines</code> codec) into one datagram, which is sent once the
+ * next event would not fit or after <b>LingerTime</b> milliseconds.
+ * 
+ * <p>
+ * Events are UTF-8 encoded and never take more than <b>MaxEventSize</b> bytes
+ * (or the <b>MaxPacketSize</b> when batching); longer messages and stack
+ * traces are truncated and flagged with a <code>truncated</code> field.
+ * 
+ * <p>
+ * Alternatively, setting <b>MaxChunks</b> lets events that do not fit in a
+ * single datagram be split into up to that many GELF chunks instead of being
+ * truncated; see {@link GelfChunkReassembler} for the receiving side.
+ * 
+ * <p>
+ * The <b>Compression</b> option compresses every datagram (a whole packed
+ * batch when batching) with GZIP or ZLIB. The size limits above then apply
+ * to the uncompressed payload, so they can be set several times larger than
+ * the datagrams actually sent.
+ * 
+ * <p>
+ * The <b>Format</b> option switches from text JSON to binary Smile, which is
+ * smaller and faster to encode but needs a Smile codec on the receiving side
+ * (see {@link LogstashEventDecoder}). Binary events are always sent one per
+ * datagram.
+ * 
+ * <p>
+ * The <b>RemoteHosts</b> option spreads datagrams over several collectors,
+ * either in turn or by logger name (see <b>Balancing</b>). A collector that
+ * fails a send, e.g. with an ICMP port unreachable, is skipped for
+ * <b>ReconnectionDelay</b> milliseconds, doubling with every further failure
+ * up to <b>MaxReconnectionDelay</b>, and the datagram is sent to the next
+ * one.
+ * 
+ * <p>
+ * While every collector is down, datagrams are kept in a retry buffer of
+ * <b>RetryBufferSize</b> bytes, the oldest being dropped when it is full, and
+ * sent again at up to <b>RetryRate</b> datagrams per second once a collector
+ * is back, so a short outage loses nothing.
+ * 
+ * <p>
+ * Sending can be paced with <b>MaxPacketRate</b> and <b>MaxByteRate</b>, so
+ * bursts do not overflow the socket send buffer (see <b>SendBufferSize</b>)
+ * or the collector's receive buffer, where datagrams are lost silently.
+ * Datagrams over the rate are kept in the retry buffer and sent once the
+ * burst is over, or dropped if the <b>Overflow</b> policy says so.
+ * When <b>ResolveInterval</b> is set, host names are looked up again that
+ * often by a background thread, never while sending.
+ * 
+ * <p>
  * This was inspired and really extended/copied from {@link SocketAppender}.
  * Please see the docs for the proper credit to the authors of that class.
  * 
@@ -100,13 +154,87 @@ public class UDPAppender extends AppenderSkeleton {
     static final int DEFAULT_PORT = 9991;
 
     /**
-     * The default reconnection delay (30000 milliseconds or 30 seconds).
+     * The default initial reconnection delay (1000 milliseconds or 1 second).
      */
-    static final int DEFAULT_RECONNECTION_DELAY = 30000;
-    
-    static final int MAX_MESSAGE_SIZE = 3072;
+    static final int DEFAULT_RECONNECTION_DELAY = 1000;
 
-    static final int MAX_STACK_TRACE_SIZE = 4096;
+    /**
+     * The default maximum reconnection delay (30 seconds).
+     */
+    static final int DEFAULT_MAX_RECONNECTION_DELAY = 30000;
+
+    /**
+     * The default size of the retry buffer (262144 bytes or 256 KB).
+     */
+    static final int DEFAULT_RETRY_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * The default maximum bytes of an encoded event (1400), which fits an
+     * ethernet MTU of 1500 bytes with the IP and UDP headers, so datagrams
+     * are not fragmented.
+     */
+    static final int DEFAULT_MAX_EVENT_SIZE = 1400;
+
+    /**
+     * The default number of retained datagrams (1000) resent per second.
+     */
+    static final int DEFAULT_RETRY_RATE = 1000;
+
+    /**
+     * Interval of the resends, in milliseconds.
+     */
+    private static final int RETRY_TICK = 100;
+
+    /**
+     * Datagrams over the rate are dropped.
+     */
+    public static final String DROP = "drop";
+
+    /**
+     * Datagrams over the rate are kept in the retry buffer.
+     */
+    public static final String RETAIN = "retain";
+
+    /**
+     * Milliseconds of traffic the rate limits let through at once.
+     */
+    private static final int PACING_BURST = 100;
+
+    /**
+     * Initial size of the reusable encoding buffer, enough for the largest
+     * truncated message and stack trace plus the other fields.
+     */
+    static final int INITIAL_BUFFER_SIZE = 8192;
+
+    /**
+     * The default time (100 milliseconds) a partially packed datagram waits
+     * for more events before being sent.
+     */
+    static final int DEFAULT_LINGER_TIME = 100;
+
+    /**
+     * Properties not sent by default, as they repeat the <code>host</code>
+     * and <code>application</code> fields.
+     */
+    static final String DEFAULT_EXCLUDE_PROPERTIES = "log4jmachinename,log4japp";
+
+    /**
+     * Sends datagrams to each endpoint in turn.
+     */
+    public static final String ROUND_ROBIN = "round-robin";
+
+    /**
+     * Sends the datagrams of a logger always to the same endpoint while it is
+     * available, keeping their order.
+     */
+    public static final String LOGGER_HASH = "logger-hash";
+
+    /**
+     * Encodes events with the {@link LogstashEvent} schema into a reusable
+     * direct buffer, which the channel writes without an extra copy.
+     */
+    private final LogstashJsonEncoder encoder = new LogstashJsonEncoder("udp",
+	    new ByteBufferOutputStream(INITIAL_BUFFER_SIZE, true));
 
     /**
      * We remember host name as String in addition to the resolved InetAddress
@@ -114,18 +242,87 @@ public class UDPAppender extends AppenderSkeleton {
      */
     String localMachine;
     String remoteHost;
+    String remoteHosts;
     String application;
     String overrideProperties = "true";
     InetAddress address;
     int port = DEFAULT_PORT;
-    DatagramSocket outSocket;
     int reconnectionDelay = DEFAULT_RECONNECTION_DELAY;
+    int maxReconnectionDelay = DEFAULT_MAX_RECONNECTION_DELAY;
+    private final Random random = new Random();
+    CoarseClock clock = CoarseClock.shared();
     boolean locationInfo = false;
     int count = 0;
-    private Connector connector;
-    
+
+    /**
+     * The collectors datagrams are sent to, from <b>RemoteHosts</b> or else
+     * <b>RemoteHost</b> and <b>Port</b>.
+     */
+    private UdpEndpoint[] endpoints = new UdpEndpoint[0];
+    String balancing = ROUND_ROBIN;
+    private boolean hashBalancing;
+    private int nextEndpoint;
+
+    /**
+     * Logger of the first event of the datagram being packed, which picks
+     * its endpoint when balancing by logger.
+     */
+    private String pendingLogger;
+    private long droppedCount;
+
+    /**
+     * Payloads that could not be sent to any endpoint, null when disabled.
+     */
+    private RetryRing retained;
+    int retryBufferSize = DEFAULT_RETRY_BUFFER_SIZE;
+    int retryRate = DEFAULT_RETRY_RATE;
+    private Retrier retrier;
+
+    int maxPacketRate = 0;
+    int maxByteRate = 0;
+    String overflow = RETAIN;
+    int sendBufferSize = 0;
+    private TokenBucket packetPacer;
+    private TokenBucket bytePacer;
+    private boolean retainOverflow;
+    private long throttledCount;
+
     private String environment;
 
+    /**
+     * Maximum datagram payload when batching, zero to send one event per
+     * datagram.
+     */
+    int maxPacketSize = 0;
+
+    /**
+     * Whether events are packed, only for text JSON.
+     */
+    private boolean packing;
+    int maxEventSize = DEFAULT_MAX_EVENT_SIZE;
+    int stackTraceWindow = StackTraceDeduplicator.DEFAULT_WINDOW;
+    int stackTraceCacheSize = StackTraceDeduplicator.DEFAULT_MAX_SIZE;
+    boolean propertyFields = true;
+    String includeProperties;
+    String excludeProperties = DEFAULT_EXCLUDE_PROPERTIES;
+
+    /**
+     * Maximum number of GELF chunks of an event, zero or one to truncate
+     * events to a single datagram.
+     */
+    int maxChunks = 0;
+    private GelfChunker chunker;
+
+    String format = LogstashJsonEncoder.JSON;
+    String compression = PayloadCompressor.NONE;
+    int compressionLevel = Deflater.BEST_SPEED;
+    boolean compressionDictionary = false;
+    private PayloadCompressor compressor;
+    int lingerTime = DEFAULT_LINGER_TIME;
+    private Flusher flusher;
+    int resolveInterval = 0;
+    private Resolver resolver;
+
     public UDPAppender() {
     }
 
@@ -136,7 +333,7 @@ public class UDPAppender extends AppenderSkeleton {
 	this.address = address;
 	this.remoteHost = address.getHostName();
 	this.port = port;
-	connect(address, port);
+	openEndpoints();
     }
 
     /**
@@ -146,7 +343,7 @@ public class UDPAppender extends AppenderSkeleton {
 	this.port = port;
 	this.address = getAddressByName(host);
 	this.remoteHost = host;
-	connect(address, port);
+	openEndpoints();
     }
 
     /**
@@ -173,8 +370,110 @@ public class UDPAppender extends AppenderSkeleton {
 	    }
 	}
 
+	encoder.setApplication(application);
+	encoder.setEnvironment(environment);
+	encoder.setHost(localMachine);
+	if (!LogstashJsonEncoder.JSON.equalsIgnoreCase(format)
+		&& !LogstashJsonEncoder.SMILE.equalsIgnoreCase(format)) {
+	    LogLog.warn("Unknown format [" + format + "] for appender [" + name
+		    + "], using " + LogstashJsonEncoder.JSON + ".");
+	}
+	encoder.setFormat(format);
+	packing = maxPacketSize > 0 && !encoder.isBinary();
+	if (encoder.isBinary() && maxPacketSize > 0) {
+	    LogLog.warn("Binary events cannot be packed, appender [" + name
+		    + "] sends one per datagram.");
+	}
+	if (maxChunks > 1) {
+	    int budget = chunkLimit()
+		    * (datagramSize() - GelfChunker.HEADER_SIZE);
+	    encoder.setMaxEventSize(budget);
+	    encoder.setMaxFieldSizes(budget, budget);
+	    chunker = new GelfChunker();
+	} else {
+	    // when batching, leave room for the line separator
+	    encoder.setMaxEventSize(maxPacketSize > 0 ? Math.min(maxEventSize,
+		    maxPacketSize - (packing ? 1 : 0)) : maxEventSize);
+	    chunker = null;
+	}
+
+	PayloadCompressor previous = compressor;
+	if (PayloadCompressor.GZIP.equalsIgnoreCase(compression)
+		|| PayloadCompressor.ZLIB.equalsIgnoreCase(compression)) {
+	    compressor = new PayloadCompressor(compression, compressionLevel,
+		    compressionDictionary);
+	} else {
+	    if (!PayloadCompressor.NONE.equalsIgnoreCase(compression)) {
+		LogLog.warn("Unknown compression [" + compression
+			+ "] for appender [" + name + "], sending uncompressed.");
+	    }
+	    compressor = null;
+	}
+	if (previous != null) {
+	    synchronized (this) {
+		previous.end();
+	    }
+	}
+	encoder.setStackTraceDeduplication(stackTraceWindow,
+		stackTraceCacheSize);
+	encoder.setPropertyFields(propertyFields,
+		StringUtils.isBlank(includeProperties) ? null : StringUtils
+			.split(includeProperties, ", "), StringUtils.split(
+			excludeProperties, ", "));
+	try {
+	    encoder.prepare();
+	} catch (IOException e) {
+	    LogLog.error("Could not encode the constant Logstash fields.", e);
+	}
+
+	if (packing && flusher == null) {
+	    flusher = new Flusher();
+	    flusher.setDaemon(true);
+	    flusher.setName("UDPAppender-Flusher-" + flusher.getName());
+	    flusher.start();
+	}
+	if (resolveInterval > 0 && resolver == null) {
+	    resolver = new Resolver();
+	    resolver.setDaemon(true);
+	    resolver.setPriority(Thread.MIN_PRIORITY);
+	    resolver.setName("UDPAppender-Resolver-" + resolver.getName());
+	    resolver.start();
+	}
+	if (retryBufferSize <= 0) {
+	    retained = null;
+	} else if (retained == null || retained.capacity() != retryBufferSize) {
+	    retained = new RetryRing(retryBufferSize);
+	}
+	packetPacer = maxPacketRate > 0 ? new TokenBucket(maxPacketRate,
+		(long) maxPacketRate * PACING_BURST / 1000) : null;
+	bytePacer = maxByteRate > 0 ? new TokenBucket(maxByteRate,
+		(long) maxByteRate * PACING_BURST / 1000) : null;
+	retainOverflow = RETAIN.equalsIgnoreCase(overflow);
+	if (!retainOverflow && !DROP.equalsIgnoreCase(overflow)) {
+	    LogLog.warn("Unknown overflow [" + overflow + "] for appender ["
+		    + name + "], using " + RETAIN + ".");
+	    retainOverflow = true;
+	}
+	if (retainOverflow && retained == null
+		&& (packetPacer != null || bytePacer != null)) {
+	    LogLog.warn("Overflow " + RETAIN + " of appender [" + name
+		    + "] needs a RetryBufferSize, dropping instead.");
+	}
+	if (retained != null && retrier == null) {
+	    retrier = new Retrier();
+	    retrier.setDaemon(true);
+	    retrier.setName("UDPAppender-Retrier-" + retrier.getName());
+	    retrier.start();
+	}
+
+	hashBalancing = LOGGER_HASH.equalsIgnoreCase(balancing);
+	if (!hashBalancing && !ROUND_ROBIN.equalsIgnoreCase(balancing)) {
+	    LogLog.warn("Unknown balancing [" + balancing + "] for appender ["
+		    + name + "], using " + ROUND_ROBIN + ".");
+	}
+
 	// if not passed in, allow null app (app property won't be set)
-	connect(address, port);
+	openEndpoints();
     }
 
     /**
@@ -189,47 +488,79 @@ public class UDPAppender extends AppenderSkeleton {
 	}
 
 	this.closed = true;
+	if (flusher != null) {
+	    flusher.interrupted = true;
+	    flusher.interrupt();
+	    flusher = null;
+	}
+	if (resolver != null) {
+	    resolver.interrupted = true;
+	    resolver.interrupt();
+	    resolver = null;
+	}
+	if (retrier != null) {
+	    retrier.interrupted = true;
+	    retrier.interrupt();
+	    retrier = null;
+	}
+	try {
+	    flushPending();
+	} catch (IOException e) {
+	    LogLog.warn("Could not send pending UDP events: " + e);
+	}
+	resendRetained(Integer.MAX_VALUE, false);
+	if (compressor != null) {
+	    compressor.end();
+	    compressor = null;
+	}
 	cleanUp();
     }
 
     /**
-     * Close the UDP Socket and release the underlying connector thread if it
-     * has been created
+     * Close the UDP channels of all endpoints.
      */
     public void cleanUp() {
-	if (outSocket != null) {
-	    try {
-		outSocket.close();
-	    } catch (Exception e) {
-		LogLog.error("Could not close outSocket.", e);
-	    }
-
-	    outSocket = null;
-	}
-
-	if (connector != null) {
-	    // LogLog.debug("Interrupting the connector.");
-	    connector.interrupted = true;
-	    connector = null; // allow gc
+	for (int i = 0; i < endpoints.length; i++) {
+	    endpoints[i].close();
 	}
     }
 
-    void connect(InetAddress address, int port) {
-	if (this.address == null) {
-	    return;
+    /**
+     * Replaces the endpoints with those of the <b>RemoteHosts</b> or
+     * <b>RemoteHost</b> options. Their channels are opened on the first send,
+     * so an endpoint that cannot be reached yet is just retried later.
+     */
+    synchronized void openEndpoints() {
+	// First, close the previous channels if any.
+	cleanUp();
+	if (remoteHosts != null) {
+	    endpoints = UdpEndpoint.parse(remoteHosts, port);
+	} else if (remoteHost != null) {
+	    endpoints = new UdpEndpoint[] { new UdpEndpoint(remoteHost,
+		    address, port) };
+	} else {
+	    endpoints = new UdpEndpoint[0];
 	}
+	nextEndpoint = 0;
+    }
 
+    /**
+     * Opens a channel connected to <code>address</code> and <code>port</code>,
+     * with a send buffer of <code>sendBufferSize</code> bytes unless zero.
+     */
+    static DatagramChannel openChannel(InetAddress address, int port,
+	    int sendBufferSize) throws IOException {
+	DatagramChannel channel = DatagramChannel.open();
 	try {
-	    // First, close the previous connection if any.
-	    cleanUp();
-	    outSocket = new DatagramSocket();
-	    outSocket.connect(address, port);
+	    if (sendBufferSize > 0) {
+		channel.socket().setSendBufferSize(sendBufferSize);
+	    }
+	    channel.connect(new InetSocketAddress(address, port));
 	} catch (IOException e) {
-	    LogLog.error(
-		    "Could not open UDP Socket for sending. We will try again later.",
-		    e);
-	    fireConnector();
+	    channel.close();
+	    throw e;
 	}
+	return channel;
     }
 
     public void append(LoggingEvent event) {
@@ -237,14 +568,14 @@ public class UDPAppender extends AppenderSkeleton {
 	    return;
 	}
 
-	if (address == null) {
+	if (endpoints.length == 0) {
 	    errorHandler.error("No remote host is set for UDPAppender named \""
 		    + this.name + "\".");
 
 	    return;
 	}
 
-	if (outSocket != null) {
+	if (retained != null || isAvailable()) {
 	    // if the values already exist, don't set (useful when forwarding
 	    // from a simplesocketserver
 	    if ((overrideProperties != null)
@@ -257,81 +588,271 @@ public class UDPAppender extends AppenderSkeleton {
 	    }
 
 	    try {
-
-		TimeZone tz = TimeZone.getTimeZone("UTC");
-		DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
-		df.setTimeZone(tz);
-		String timestamp = df.format(new Date(event.getTimeStamp()));
-
-		LogstashEvent logstashEvent = new LogstashEvent();
-		logstashEvent.setApplication(application);
-		logstashEvent.setLoggerName(event.getLoggerName());
-		logstashEvent.setNdc(event.getNDC());
-		logstashEvent.setPath(event.getLoggerName());
-		logstashEvent.setPriority(event.getLevel().toString());
-		logstashEvent.setThread(event.getThreadName());
-		logstashEvent.setTimestamp(timestamp);
-		logstashEvent.setEnvironment(environment);
-		
-		if(event.getLocationInformation() != null) {
-		    logstashEvent.setClassName(event.getLocationInformation().getClassName());
-		    logstashEvent.setFile(event.getLocationInformation().getFileName());
-		    logstashEvent.setMethod(event.getLocationInformation().getMethodName());
+		if (packing) {
+		    pack(event);
+		} else {
+		    ByteBufferOutputStream out = encoder.getOutput();
+		    try {
+			encoder.encode(event);
+			send(0, out.size(), event.getLoggerName());
+		    } finally {
+			out.reset();
+		    }
 		}
-		
-		String message = event.getRenderedMessage().trim();
-		logstashEvent.setMessage(message);
-		if (message.length() > MAX_MESSAGE_SIZE) {
-		    StringBuilder sb = new StringBuilder();
-		    String truncatedMessage = message.substring(0,
-			    MAX_MESSAGE_SIZE - 3);
-		    sb.append(truncatedMessage);
-		    sb.append("...");
-		    logstashEvent.setMessage(sb.toString());
+	    } catch (IOException e) {
+		encoder.getOutput().reset();
+		LogLog.warn("Could not encode event for UDP: " + e);
+	    }
+	} else {
+	    droppedCount++;
+	}
+    }
+
+    /**
+     * Whether any endpoint can be sent to, so events are not encoded just to
+     * be dropped while all are ejected and nothing is retained.
+     */
+    private boolean isAvailable() {
+	long now = clock.currentTimeMillis();
+	for (int i = 0; i < endpoints.length; i++) {
+	    if (endpoints[i].isAvailable(now)) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Adds the event to the datagram being packed, sending the datagram first
+     * if the event does not fit.
+     */
+    void pack(LoggingEvent event) throws IOException {
+	ByteBufferOutputStream out = encoder.getOutput();
+	int pending = out.size();
+	try {
+	    encoder.encode(event);
+	} catch (IOException e) {
+	    out.setSize(pending);
+	    throw e;
+	}
+
+	if (chunker != null && out.size() - pending >= maxPacketSize) {
+	    // too large to be packed with others, send it on its own (in
+	    // chunks unless compression makes it fit)
+	    try {
+		if (pending > 0) {
+		    send(0, pending, pendingLogger);
 		}
+		send(pending, out.size(), event.getLoggerName());
+	    } finally {
+		out.reset();
+	    }
+	    return;
+	}
+	out.write('\n');
 
-		if (event.getThrowableInformation() != null) {
-		    String stackTrace = StringUtils.join(
-			    event.getThrowableStrRep(), "\n");
-		    logstashEvent.setStackTrace(stackTrace);
-		    if (stackTrace.length() > MAX_STACK_TRACE_SIZE) {
-			StringBuilder sb = new StringBuilder();
-			String truncatedStackTrace = stackTrace.substring(0,
-				MAX_STACK_TRACE_SIZE - 3);
-			sb.append(truncatedStackTrace);
-			sb.append("...");
-			logstashEvent.setStackTrace(sb.toString());
-		    }
+	if (pending == 0) {
+	    pendingLogger = event.getLoggerName();
+	} else if (out.size() > maxPacketSize) {
+	    send(0, pending, pendingLogger);
+	    out.discard(pending);
+	    pendingLogger = event.getLoggerName();
+	}
+	if (out.size() >= maxPacketSize) {
+	    flushPending();
+	}
+    }
+
+    /**
+     * Sends the events packed so far, if any.
+     */
+    void flushPending() throws IOException {
+	ByteBufferOutputStream out = encoder.getOutput();
+	if (out.size() > 0) {
+	    try {
+		send(0, out.size(), pendingLogger);
+	    } finally {
+		out.reset();
+	    }
+	}
+    }
+
+    /**
+     * Maximum payload of a single datagram.
+     */
+    private int datagramSize() {
+	return maxPacketSize > 0 ? maxPacketSize : maxEventSize;
+    }
+
+    /**
+     * Sends the encoded bytes in <code>[from, to)</code> as one datagram,
+     * compressed if configured, or as GELF chunks if too large.
+     * 
+     * <p>
+     * The datagram is retained for a later resend if no endpoint takes it,
+     * or dropped if there is no retry buffer. Over the rate limits, it is
+     * not even tried unless the overflow policy retains it.
+     */
+    private void send(int from, int to, String logger) {
+	ByteBufferOutputStream out = encoder.getOutput();
+	int size = out.size();
+	try {
+	    ByteBuffer payload = out.select(from, to);
+	    if (compressor != null) {
+		payload = compressor.compress(payload);
+	    }
+	    int start = payload.position();
+
+	    if (tooManyChunks(payload)) {
+		// compression overhead or the fixed fields outgrew the budget
+		LogLog.warn("Dropping UDP payload of " + payload.remaining()
+			+ " bytes, it needs more than " + chunkLimit()
+			+ " GELF chunks.");
+		droppedCount++;
+	    } else if (!pace(payload)) {
+		throttledCount++;
+		if (retainOverflow) {
+		    retain(payload);
+		} else {
+		    droppedCount++;
 		}
-		
-		ObjectMapper mapper = new ObjectMapper();
-		String json = mapper.writeValueAsString(logstashEvent);
-		
-		StringBuffer buf = new StringBuffer(json);
-		DatagramPacket dp = new DatagramPacket(buf.toString().getBytes(
-			"ASCII"), buf.length(), address, port);
-		outSocket.send(dp);
+	    } else if (!transmit(payload, logger)) {
+		payload.position(start);
+		retain(payload);
+	    }
+	} finally {
+	    out.setSize(size);
+	}
+    }
+
+    /**
+     * Whether the payload would be chunked into more datagrams than
+     * <b>MaxChunks</b> allows, which {@link GelfChunker} refuses to write.
+     */
+    private boolean tooManyChunks(ByteBuffer payload) {
+	int length = payload.remaining();
+	return chunker != null && length > datagramSize()
+		&& GelfChunker.chunkCount(length, datagramSize()) > chunkLimit();
+    }
+
+    private int chunkLimit() {
+	return Math.min(maxChunks, GelfChunker.MAX_CHUNKS);
+    }
+
+    /**
+     * Sends the payload to the endpoint picked by the balancing, or to the
+     * next available ones if sending to it fails. Returns <code>false</code>
+     * if none took it.
+     */
+    private boolean transmit(ByteBuffer payload, String logger) {
+	int start = payload.position();
+	long now = clock.currentTimeMillis();
+	int first = firstEndpoint(logger);
+	for (int i = 0; i < endpoints.length; i++) {
+	    UdpEndpoint endpoint = endpoints[(first + i) % endpoints.length];
+	    if (!endpoint.isAvailable(now)) {
+		continue;
+	    }
+	    try {
+		payload.position(start);
+		write(endpoint.channel(sendBufferSize), payload);
+		endpoint.succeeded();
+		return true;
 	    } catch (IOException e) {
-		outSocket = null;
-		LogLog.warn("Detected problem with UDP connection: " + e);
+		LogLog.warn("Detected problem with UDP endpoint " + endpoint
+			+ ", trying the next one: " + e);
+		endpoint.failed(now, reconnectionDelay, maxReconnectionDelay,
+			random);
+	    }
+	}
+	return false;
+    }
 
-		if (reconnectionDelay > 0) {
-		    fireConnector();
-		}
+    /**
+     * Takes the datagrams and bytes of the payload from the rate limits, or
+     * returns <code>false</code> if they are exhausted.
+     */
+    private boolean pace(ByteBuffer payload) {
+	if (packetPacer == null && bytePacer == null) {
+	    return true;
+	}
+	long now = System.nanoTime();
+	if ((packetPacer != null && !packetPacer.ready(now))
+		|| (bytePacer != null && !bytePacer.ready(now))) {
+	    return false;
+	}
+	if (packetPacer != null) {
+	    packetPacer.take(chunker != null
+		    && payload.remaining() > datagramSize() ? GelfChunker
+		    .chunkCount(payload.remaining(), datagramSize()) : 1);
+	}
+	if (bytePacer != null) {
+	    bytePacer.take(payload.remaining());
+	}
+	return true;
+    }
+
+    private void retain(ByteBuffer payload) {
+	if (retained == null || !retained.add(payload)) {
+	    droppedCount++;
+	}
+    }
+
+    /**
+     * Sends up to <code>max</code> retained datagrams, oldest first, stopping
+     * at the first one no endpoint takes or at the rate limits. Does nothing
+     * once closed, so a late resend does not reopen the channels.
+     */
+    synchronized void resend(int max) {
+	if (closed) {
+	    return;
+	}
+	resendRetained(max, true);
+    }
+
+    /**
+     * Sends up to <code>max</code> retained datagrams, pacing them only if
+     * <code>paced</code>, which the final attempt on close is not.
+     */
+    private void resendRetained(int max, boolean paced) {
+	if (retained == null) {
+	    return;
+	}
+	for (int i = 0; i < max && !retained.isEmpty(); i++) {
+	    ByteBuffer payload = retained.first();
+	    if (paced && !pace(payload)) {
+		break;
+	    }
+	    if (!transmit(payload, null)) {
+		break;
 	    }
+	    retained.removeFirst();
 	}
     }
 
-    void fireConnector() {
-	if (connector == null) {
-	    LogLog.debug("Starting a new connector thread.");
-	    connector = new Connector();
-	    connector.setDaemon(true);
-	    connector.setPriority(Thread.MIN_PRIORITY);
-	    connector.start();
+    private void write(DatagramChannel channel, ByteBuffer payload)
+	    throws IOException {
+	if (chunker != null && payload.remaining() > datagramSize()) {
+	    chunker.write(channel, payload, datagramSize());
+	} else {
+	    channel.write(payload);
 	}
     }
 
+    /**
+     * Index of the endpoint a datagram is sent to first.
+     */
+    private int firstEndpoint(String logger) {
+	if (endpoints.length == 1) {
+	    return 0;
+	}
+	if (hashBalancing && logger != null) {
+	    return (logger.hashCode() & Integer.MAX_VALUE) % endpoints.length;
+	}
+	nextEndpoint = (nextEndpoint + 1) % endpoints.length;
+	return nextEndpoint;
+    }
+
     static InetAddress getAddressByName(String host) {
 	try {
 	    return InetAddress.getByName(host);
@@ -366,6 +887,65 @@ public class UDPAppender extends AppenderSkeleton {
 	return remoteHost;
     }
 
+    /**
+     * The <b>RemoteHosts</b> option takes a comma separated list of
+     * <code>host[:port]</code> to spread the UDP packets over, the port
+     * defaulting to the <b>Port</b> option. It takes precedence over
+     * <b>RemoteHost</b>.
+     */
+    public void setRemoteHosts(String remoteHosts) {
+	this.remoteHosts = remoteHosts;
+    }
+
+    /**
+     * Returns value of the <b>RemoteHosts</b> option.
+     */
+    public String getRemoteHosts() {
+	return remoteHosts;
+    }
+
+    /**
+     * The <b>Balancing</b> option takes <code>round-robin</code> (the
+     * default), to send datagrams to each of the <b>RemoteHosts</b> in turn,
+     * or <code>logger-hash</code>, to send all events of a logger to the same
+     * host while it is up. When batching, the datagram goes where its first
+     * event's logger would.
+     */
+    public void setBalancing(String balancing) {
+	this.balancing = balancing;
+    }
+
+    /**
+     * Returns value of the <b>Balancing</b> option.
+     */
+    public String getBalancing() {
+	return balancing;
+    }
+
+    /**
+     * Returns the number of datagrams dropped, or events not even encoded,
+     * because no endpoint was available and they could not be retained, plus
+     * those evicted from the full retry buffer.
+     */
+    public synchronized long getDroppedCount() {
+	return droppedCount + (retained != null ? retained.evicted : 0);
+    }
+
+    /**
+     * Returns the number of datagrams that exceeded <b>MaxPacketRate</b> or
+     * <b>MaxByteRate</b>, whether dropped or retained.
+     */
+    public synchronized long getThrottledCount() {
+	return throttledCount;
+    }
+
+    /**
+     * Returns the number of datagrams waiting in the retry buffer.
+     */
+    public synchronized int getRetainedCount() {
+	return retained != null ? retained.size() : 0;
+    }
+
     /**
      * The <b>App</b> option takes a string value which should be the name of
      * the application getting logged. If property was already set (via system
@@ -373,6 +953,7 @@ public class UDPAppender extends AppenderSkeleton {
      */
     public void setApplication(String application) {
 	this.application = application;
+	encoder.setApplication(application);
     }
 
     /**
@@ -413,14 +994,251 @@ public class UDPAppender extends AppenderSkeleton {
 	return port;
     }
 
+    /**
+     * The <b>MaxPacketSize</b> option takes the maximum number of payload
+     * bytes of a datagram. When positive, events are packed into datagrams of
+     * up to this size, e.g. 1400 to avoid IP fragmentation on ethernet or 8192
+     * on a local network. Zero (the default) sends one event per datagram.
+     */
+    public void setMaxPacketSize(int maxPacketSize) {
+	this.maxPacketSize = maxPacketSize;
+    }
+
+    /**
+     * Returns value of the <b>MaxPacketSize</b> option.
+     */
+    public int getMaxPacketSize() {
+	return maxPacketSize;
+    }
+
+    /**
+     * The <b>MaxEventSize</b> option takes the maximum number of bytes a
+     * single encoded event may take; the message and stack trace are
+     * truncated to fit. The default is 1400, below the usual path MTU, so
+     * datagrams are never fragmented; a lost fragment loses the whole
+     * datagram. Raise it on a local network with a larger MTU, or set
+     * <b>MaxChunks</b> to send large events whole.
+     */
+    public void setMaxEventSize(int maxEventSize) {
+	this.maxEventSize = maxEventSize;
+    }
+
+    /**
+     * Returns value of the <b>MaxEventSize</b> option.
+     */
+    public int getMaxEventSize() {
+	return maxEventSize;
+    }
+
+    /**
+     * The <b>StackTraceWindow</b> option takes the number of milliseconds
+     * during which the stack trace of a fingerprint is sent only once; the
+     * repeats carry the <code>stack_fingerprint</code> and a
+     * <code>stack_repeat</code> count instead. The default is 60000 which
+     * corresponds to 1 minute; zero sends the stack trace with every event.
+     */
+    public void setStackTraceWindow(int stackTraceWindow) {
+	this.stackTraceWindow = stackTraceWindow;
+    }
+
+    /**
+     * Returns value of the <b>StackTraceWindow</b> option.
+     */
+    public int getStackTraceWindow() {
+	return stackTraceWindow;
+    }
+
+    /**
+     * The <b>StackTraceCacheSize</b> option takes the number of stack trace
+     * fingerprints remembered for the <b>StackTraceWindow</b>, the least
+     * recently seen being forgotten first. The default is 1024.
+     */
+    public void setStackTraceCacheSize(int stackTraceCacheSize) {
+	this.stackTraceCacheSize = stackTraceCacheSize;
+    }
+
+    /**
+     * Returns value of the <b>StackTraceCacheSize</b> option.
+     */
+    public int getStackTraceCacheSize() {
+	return stackTraceCacheSize;
+    }
+
+    /**
+     * The <b>PropertyFields</b> option, when true (the default), sends the MDC
+     * entries and properties of events as fields of their own, e.g. to carry
+     * a request id. Those named like one of the fixed fields are skipped.
+     */
+    public void setPropertyFields(boolean propertyFields) {
+	this.propertyFields = propertyFields;
+    }
+
+    /**
+     * Returns value of the <b>PropertyFields</b> option.
+     */
+    public boolean getPropertyFields() {
+	return propertyFields;
+    }
+
+    /**
+     * The <b>IncludeProperties</b> option takes a comma separated list of the
+     * MDC entries and properties sent as fields. By default all are sent.
+     */
+    public void setIncludeProperties(String includeProperties) {
+	this.includeProperties = includeProperties;
+    }
+
+    /**
+     * Returns value of the <b>IncludeProperties</b> option.
+     */
+    public String getIncludeProperties() {
+	return includeProperties;
+    }
+
+    /**
+     * The <b>ExcludeProperties</b> option takes a comma separated list of the
+     * MDC entries and properties never sent as fields. The default is
+     * <code>log4jmachinename,log4japp</code>.
+     */
+    public void setExcludeProperties(String excludeProperties) {
+	this.excludeProperties = excludeProperties;
+    }
+
+    /**
+     * Returns value of the <b>ExcludeProperties</b> option.
+     */
+    public String getExcludeProperties() {
+	return excludeProperties;
+    }
+
+    /**
+     * The <b>MaxChunks</b> option takes the maximum number of GELF chunks an
+     * event may be split into (at most 128). Events larger than a single
+     * datagram (<b>MaxPacketSize</b> when batching, <b>MaxEventSize</b>
+     * otherwise) are then sent in chunks and only truncated past that many
+     * chunks. Zero (the default) truncates events to a single datagram.
+     */
+    public void setMaxChunks(int maxChunks) {
+	this.maxChunks = maxChunks;
+    }
+
+    /**
+     * Returns value of the <b>MaxChunks</b> option.
+     */
+    public int getMaxChunks() {
+	return maxChunks;
+    }
+
+    /**
+     * The <b>Format</b> option takes <code>json</code> (the default) or
+     * <code>smile</code>, to send events as binary Smile with the same
+     * fields. With <code>smile</code>, <b>MaxPacketSize</b> only limits the
+     * size of datagrams as events are not packed.
+     */
+    public void setFormat(String format) {
+	this.format = format;
+    }
+
+    /**
+     * Returns value of the <b>Format</b> option.
+     */
+    public String getFormat() {
+	return format;
+    }
+
+    /**
+     * The <b>Compression</b> option takes <code>none</code> (the default),
+     * <code>gzip</code> or <code>zlib</code>.
+     */
+    public void setCompression(String compression) {
+	this.compression = compression;
+    }
+
+    /**
+     * Returns value of the <b>Compression</b> option.
+     */
+    public String getCompression() {
+	return compression;
+    }
+
+    /**
+     * The <b>CompressionLevel</b> option takes the deflate level, from 0 to
+     * 9. The default is 1, the fastest.
+     */
+    public void setCompressionLevel(int compressionLevel) {
+	this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Returns value of the <b>CompressionLevel</b> option.
+     */
+    public int getCompressionLevel() {
+	return compressionLevel;
+    }
+
+    /**
+     * The <b>CompressionDictionary</b> option, when true, compresses ZLIB
+     * payloads with the preset dictionary returned by
+     * {@link PayloadCompressor#dictionary()}. The receiver must inflate them
+     * with the same dictionary. Ignored for GZIP.
+     */
+    public void setCompressionDictionary(boolean compressionDictionary) {
+	this.compressionDictionary = compressionDictionary;
+    }
+
+    /**
+     * Returns value of the <b>CompressionDictionary</b> option.
+     */
+    public boolean getCompressionDictionary() {
+	return compressionDictionary;
+    }
+
+    /**
+     * The <b>LingerTime</b> option takes the maximum number of milliseconds a
+     * partially packed datagram waits for more events before being sent. Only
+     * used when <b>MaxPacketSize</b> is set. The default is 100 milliseconds.
+     */
+    public void setLingerTime(int lingerTime) {
+	this.lingerTime = lingerTime;
+    }
+
+    /**
+     * Returns value of the <b>LingerTime</b> option.
+     */
+    public int getLingerTime() {
+	return lingerTime;
+    }
+
+    /**
+     * The <b>ResolveInterval</b> option takes the number of milliseconds
+     * between the background resolutions of the remote host names, so the
+     * appender follows collectors whose DNS records move, or whose name could
+     * not be resolved at startup, e.g. 60000 for once a minute. Zero (the
+     * default) resolves the names only once, when the options are set, and
+     * does not start the thread.
+     */
+    public void setResolveInterval(int resolveInterval) {
+	this.resolveInterval = resolveInterval;
+    }
+
+    /**
+     * Returns value of the <b>ResolveInterval</b> option.
+     */
+    public int getResolveInterval() {
+	return resolveInterval;
+    }
+
     /**
      * The <b>ReconnectionDelay</b> option takes a positive integer representing
-     * the number of milliseconds to wait between each failed attempt to
-     * establish an outgoing socket. The default value of this option is 30000
-     * which corresponds to 30 seconds.
+     * the number of milliseconds an endpoint that failed a send is skipped
+     * before its channel is reopened. It doubles, with some jitter, after
+     * every further failure up to <b>MaxReconnectionDelay</b>. The default
+     * value of this option is 1000 which corresponds to 1 second, so a
+     * transient failure only skips an endpoint briefly.
      * 
      * <p>
-     * Setting this option to zero turns off reconnection capability.
+     * Setting this option to zero skips an endpoint for good after its first
+     * failure: its channel is never reopened.
      */
     public void setReconnectionDelay(int delay) {
 	this.reconnectionDelay = delay;
@@ -434,45 +1252,226 @@ public class UDPAppender extends AppenderSkeleton {
     }
 
     /**
-     * The Connector will retry the UDP socket. It does this by attempting to
-     * open a new UDP socket every <code>reconnectionDelay</code> milliseconds.
-     * 
-     * <p>
-     * It stops trying whenever a connection is established. It will restart to
-     * try reconnect to the server when previpously open connection is droppped.
-     * 
-     * @author Ceki G&uuml;lc&uuml;
-     * @since 0.8.4
+     * The <b>MaxReconnectionDelay</b> option takes the maximum number of
+     * milliseconds an endpoint is skipped after failures. The default is
+     * 30000.
+     */
+    public void setMaxReconnectionDelay(int delay) {
+	this.maxReconnectionDelay = delay;
+    }
+
+    /**
+     * Returns value of the <b>MaxReconnectionDelay</b> option.
      */
-    class Connector extends Thread {
+    public int getMaxReconnectionDelay() {
+	return maxReconnectionDelay;
+    }
+
+    /**
+     * The <b>RetryBufferSize</b> option takes the number of bytes of
+     * datagrams kept while no endpoint is available, to be sent once one is
+     * back. The default is 262144 (256 KB). Zero drops them instead and does
+     * not start the thread resending them.
+     */
+    public void setRetryBufferSize(int retryBufferSize) {
+	this.retryBufferSize = retryBufferSize;
+    }
+
+    /**
+     * Returns value of the <b>RetryBufferSize</b> option.
+     */
+    public int getRetryBufferSize() {
+	return retryBufferSize;
+    }
+
+    /**
+     * The <b>RetryRate</b> option takes the maximum number of retained
+     * datagrams resent per second, so a collector coming back is not flooded
+     * on top of the live traffic. The default is 1000.
+     */
+    public void setRetryRate(int retryRate) {
+	this.retryRate = retryRate;
+    }
+
+    /**
+     * Returns value of the <b>RetryRate</b> option.
+     */
+    public int getRetryRate() {
+	return retryRate;
+    }
+
+    /**
+     * The Flusher sends the partially packed datagram every
+     * <code>lingerTime</code> milliseconds, so batched events are never held
+     * back for longer than that when the logging rate is low.
+     */
+    class Flusher extends Thread {
 	boolean interrupted = false;
 
 	public void run() {
-	    DatagramSocket socket;
+	    while (!interrupted) {
+		try {
+		    sleep(lingerTime);
+		} catch (InterruptedException e) {
+		    return;
+		}
 
+		synchronized (UDPAppender.this) {
+		    if (interrupted) {
+			continue;
+		    }
+		    try {
+			flushPending();
+		    } catch (IOException e) {
+			LogLog.warn("Could not send pending UDP events: " + e);
+		    }
+		}
+	    }
+	}
+    }
+
+    /**
+     * The <b>MaxPacketRate</b> option takes the maximum number of datagrams
+     * sent per second, GELF chunks included. Zero (the default) does not limit
+     * it.
+     */
+    public void setMaxPacketRate(int maxPacketRate) {
+	this.maxPacketRate = maxPacketRate;
+    }
+
+    /**
+     * Returns value of the <b>MaxPacketRate</b> option.
+     */
+    public int getMaxPacketRate() {
+	return maxPacketRate;
+    }
+
+    /**
+     * The <b>MaxByteRate</b> option takes the maximum number of payload bytes
+     * sent per second, after compression. Zero (the default) does not limit
+     * it.
+     */
+    public void setMaxByteRate(int maxByteRate) {
+	this.maxByteRate = maxByteRate;
+    }
+
+    /**
+     * Returns value of the <b>MaxByteRate</b> option.
+     */
+    public int getMaxByteRate() {
+	return maxByteRate;
+    }
+
+    /**
+     * The <b>Overflow</b> option takes what to do with datagrams over
+     * <b>MaxPacketRate</b> or <b>MaxByteRate</b>: <code>retain</code> (the
+     * default) keeps them in the retry buffer, to be resent within the rates
+     * once the burst is over, and <code>drop</code> drops them. Without a
+     * retry buffer (see <b>RetryBufferSize</b>) they are always dropped.
+     */
+    public void setOverflow(String overflow) {
+	this.overflow = overflow;
+    }
+
+    /**
+     * Returns value of the <b>Overflow</b> option.
+     */
+    public String getOverflow() {
+	return overflow;
+    }
+
+    /**
+     * The <b>SendBufferSize</b> option takes the size in bytes of the socket
+     * send buffer (SO_SNDBUF), which absorbs bursts the network cannot take at
+     * once. Zero (the default) keeps the system default.
+     */
+    public void setSendBufferSize(int sendBufferSize) {
+	this.sendBufferSize = sendBufferSize;
+    }
+
+    /**
+     * Returns value of the <b>SendBufferSize</b> option.
+     */
+    public int getSendBufferSize() {
+	return sendBufferSize;
+    }
+
+    /**
+     * The Retrier resends the retained datagrams, a few every
+     * <code>RETRY_TICK</code> milliseconds to stay within
+     * <code>retryRate</code>.
+     */
+    class Retrier extends Thread {
+	boolean interrupted = false;
+
+	public void run() {
 	    while (!interrupted) {
 		try {
-		    sleep(reconnectionDelay);
-		    LogLog.debug("Attempting to establish UDP Datagram Socket");
-		    socket = new DatagramSocket();
+		    sleep(RETRY_TICK);
+		} catch (InterruptedException e) {
+		    return;
+		}
+		resend(Math.max(1, retryRate * RETRY_TICK / 1000));
+	    }
+	}
+    }
 
-		    synchronized (this) {
-			outSocket = socket;
-			connector = null;
+    /**
+     * The Resolver looks up the remote host names again every
+     * <code>resolveInterval</code> milliseconds. When an address changed, it
+     * connects a channel to the new one and only then swaps it in under the
+     * appender lock, so sending never waits on DNS.
+     */
+    class Resolver extends Thread {
+	boolean interrupted = false;
 
-			break;
-		    }
+	public void run() {
+	    while (!interrupted) {
+		try {
+		    sleep(resolveInterval);
 		} catch (InterruptedException e) {
-		    LogLog.debug("Connector interrupted. Leaving loop.");
+		    return;
+		}
 
+		UdpEndpoint[] resolving;
+		synchronized (UDPAppender.this) {
+		    resolving = endpoints;
+		}
+		for (int i = 0; i < resolving.length && !interrupted; i++) {
+		    resolve(resolving, resolving[i]);
+		}
+	    }
+	}
+
+	private void resolve(UdpEndpoint[] resolving, UdpEndpoint endpoint) {
+	    InetAddress resolved;
+	    DatagramChannel channel;
+	    try {
+		resolved = InetAddress.getByName(endpoint.host);
+		if (resolved.equals(endpoint.address)) {
 		    return;
-		} catch (IOException e) {
-		    LogLog.debug("Could not establish an outgoing MulticastSocket."
-			    + e);
 		}
+		channel = openChannel(resolved, endpoint.port, sendBufferSize);
+	    } catch (IOException e) {
+		// keep sending to the last known address
+		LogLog.debug("Could not resolve UDP endpoint " + endpoint + ": "
+			+ e);
+		return;
 	    }
 
-	    // LogLog.debug("Exiting Connector.run() method.");
+	    synchronized (UDPAppender.this) {
+		if (!interrupted && !closed && endpoints == resolving) {
+		    LogLog.debug("UDP endpoint " + endpoint + " moved to "
+			    + resolved.getHostAddress() + ".");
+		    endpoint.moved(resolved, channel);
+		    return;
+		}
+	    }
+	    try {
+		channel.close();
+	    } catch (IOException e) {
+		// never used
+	    }
 	}
     }
 
@@ -492,5 +1491,6 @@ public class UDPAppender extends AppenderSkeleton {
 
     public void setEnvironment(String environment) {
         this.environment = environment;
+        encoder.setEnvironment(environment);
     }
 }
\ No newline at end of file
@@ -0,0 +1,144 @@
+package com.vivareal.logger.appender;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * A collector {@link UDPAppender} sends datagrams to, with its connected
+ * channel and passive health state.
+ * 
+ * <p>
+ * There are no health probes: an endpoint is considered down when sending to
+ * it fails, which on a connected channel includes the ICMP port unreachable
+ * reported by the kernel after a datagram reached a host with nothing
+ * listening. A failed endpoint is ejected for a while, longer after every
+ * consecutive failure, and its channel reopened on the first send after the
+ * ejection ends.
+ * 
+ * <p>
+ * Not thread safe, used under the appender lock. Only the address is read
+ * without it, by the appender's resolver.
+ */
+final class UdpEndpoint {
+    final String host;
+
+    final int port;
+
+    volatile InetAddress address;
+
+    private DatagramChannel channel;
+
+    /**
+     * Time the ejection ends, zero while healthy.
+     */
+    private long ejectedUntil;
+
+    /**
+     * Length of the last ejection, zero while healthy.
+     */
+    private long backoff;
+
+    UdpEndpoint(String host, InetAddress address, int port) {
+	this.host = host;
+	this.address = address;
+	this.port = port;
+    }
+
+    boolean isAvailable(long now) {
+	return address != null && now >= ejectedUntil;
+    }
+
+    /**
+     * Returns the connected channel, opening it with a send buffer of
+     * <code>sendBufferSize</code> bytes (unless zero) if needed.
+     */
+    DatagramChannel channel(int sendBufferSize) throws IOException {
+	if (channel == null) {
+	    channel = UDPAppender.openChannel(address, port, sendBufferSize);
+	}
+	return channel;
+    }
+
+    /**
+     * Switches to a new address of the host, with a channel already
+     * connected to it, and gives the endpoint a fresh chance.
+     */
+    void moved(InetAddress address, DatagramChannel channel) {
+	close();
+	this.address = address;
+	this.channel = channel;
+	succeeded();
+    }
+
+    void succeeded() {
+	ejectedUntil = 0;
+	backoff = 0;
+    }
+
+    /**
+     * Closes the channel and ejects the endpoint for twice as long as the
+     * previous time, between <code>minDelay</code> and <code>maxDelay</code>
+     * milliseconds and randomly shortened by up to half so many appenders do
+     * not retry in lockstep. Ejects it for good if <code>minDelay</code> is
+     * not positive.
+     */
+    void failed(long now, long minDelay, long maxDelay, Random random) {
+	close();
+	if (minDelay <= 0) {
+	    ejectedUntil = Long.MAX_VALUE;
+	    return;
+	}
+	backoff = Math.min(Math.max(backoff * 2, minDelay), Math.max(maxDelay,
+		minDelay));
+	ejectedUntil = now + backoff / 2
+		+ (long) (random.nextDouble() * backoff / 2);
+    }
+
+    void close() {
+	if (channel != null) {
+	    try {
+		channel.close();
+	    } catch (IOException e) {
+		LogLog.error("Could not close channel to " + this + ".", e);
+	    }
+	    channel = null;
+	}
+    }
+
+    /**
+     * Parses a comma separated list of <code>host[:port]</code>.
+     */
+    static UdpEndpoint[] parse(String hosts, int defaultPort) {
+	List<UdpEndpoint> endpoints = new ArrayList<UdpEndpoint>();
+	String[] specs = StringUtils.split(hosts, ", ");
+	for (int i = 0; i < specs.length; i++) {
+	    String host = specs[i];
+	    int port = defaultPort;
+	    int colon = host.lastIndexOf(':');
+	    if (colon > 0) {
+		try {
+		    port = Integer.parseInt(host.substring(colon + 1));
+		    host = host.substring(0, colon);
+		} catch (NumberFormatException e) {
+		    LogLog.error("Invalid port in remote host [" + specs[i]
+			    + "].");
+		    continue;
+		}
+	    }
+	    endpoints.add(new UdpEndpoint(host, UDPAppender
+		    .getAddressByName(host), port));
+	}
+	return endpoints.toArray(new UdpEndpoint[endpoints.size()]);
+    }
+
+    public String toString() {
+	return host + ":" + port;
+    }
+}
@@ -0,0 +1,163 @@
+package com.vivareal.logger.appender;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class GelfChunkerTest {
+    private static final int DATAGRAM_SIZE = 1400;
+
+    private final GelfChunker chunker = new GelfChunker();
+
+    @Test
+    public void reassemblesChunksInOrder() throws IOException {
+	byte[] payload = payload(7000);
+	List<ByteBuffer> chunks = chunk(payload);
+	assertEquals(GelfChunker.chunkCount(payload.length, DATAGRAM_SIZE),
+		chunks.size());
+	assertEquals(6, chunks.size());
+
+	GelfChunkReassembler reassembler = new GelfChunkReassembler();
+	for (int i = 0; i < chunks.size() - 1; i++) {
+	    assertTrue(chunks.get(i).remaining() <= DATAGRAM_SIZE);
+	    assertNull(reassembler.add(chunks.get(i)));
+	}
+	assertArrayEquals(payload,
+		reassembler.add(chunks.get(chunks.size() - 1)));
+	assertEquals(0, reassembler.getPendingCount());
+    }
+
+    @Test
+    public void reassemblesChunksOutOfOrder() throws IOException {
+	byte[] payload = payload(20000);
+	List<ByteBuffer> chunks = chunk(payload);
+	Collections.shuffle(chunks, new Random(42));
+
+	GelfChunkReassembler reassembler = new GelfChunkReassembler();
+	byte[] reassembled = null;
+	for (int i = 0; i < chunks.size(); i++) {
+	    assertNull(reassembled);
+	    reassembled = reassembler.add(chunks.get(i));
+	}
+	assertArrayEquals(payload, reassembled);
+    }
+
+    @Test
+    public void interleavedMessagesAreKeptApart() throws IOException {
+	byte[] first = payload(3000);
+	byte[] second = payload(4000);
+	List<ByteBuffer> firstChunks = chunk(first);
+	List<ByteBuffer> secondChunks = chunk(second);
+
+	GelfChunkReassembler reassembler = new GelfChunkReassembler();
+	assertNull(reassembler.add(firstChunks.get(0)));
+	assertNull(reassembler.add(secondChunks.get(0)));
+	assertNull(reassembler.add(firstChunks.get(1)));
+	assertNull(reassembler.add(secondChunks.get(1)));
+	assertArrayEquals(first, reassembler.add(firstChunks.get(2)));
+	assertArrayEquals(second, reassembler.add(secondChunks.get(2)));
+    }
+
+    @Test
+    public void incompleteMessageIsDroppedAfterTheTimeout() throws Exception {
+	List<ByteBuffer> incomplete = chunk(payload(5000));
+	GelfChunkReassembler reassembler = new GelfChunkReassembler(50, 1024);
+	for (int i = 1; i < incomplete.size(); i++) {
+	    assertNull(reassembler.add(incomplete.get(i)));
+	}
+	assertEquals(1, reassembler.getPendingCount());
+
+	Thread.sleep(100);
+	byte[] next = payload(3000);
+	List<ByteBuffer> chunks = chunk(next);
+	assertNull(reassembler.add(chunks.get(0)));
+	assertEquals(1, reassembler.getPendingCount());
+	// the missing chunk arrives too late to complete its message
+	assertNull(reassembler.add(incomplete.get(0)));
+	assertNull(reassembler.add(chunks.get(1)));
+	assertArrayEquals(next, reassembler.add(chunks.get(2)));
+	assertEquals(1, reassembler.getPendingCount());
+    }
+
+    @Test
+    public void datagramsThatAreNotChunksPassThrough() {
+	byte[] payload = "{\"message\":\"small\"}".getBytes();
+	assertArrayEquals(payload,
+		new GelfChunkReassembler().add(ByteBuffer.wrap(payload)));
+    }
+
+    @Test
+    public void refusesPayloadsNeedingMoreThanTheChunkLimit()
+	    throws IOException {
+	int chunkPayload = DATAGRAM_SIZE - GelfChunker.HEADER_SIZE;
+	byte[] largest = payload(GelfChunker.MAX_CHUNKS * chunkPayload);
+	assertEquals(GelfChunker.MAX_CHUNKS, chunk(largest).size());
+
+	try {
+	    chunk(payload(largest.length + 1));
+	    fail("chunked into more than " + GelfChunker.MAX_CHUNKS);
+	} catch (IllegalArgumentException e) {
+	    // expected
+	}
+    }
+
+    private List<ByteBuffer> chunk(byte[] payload) throws IOException {
+	DatagramCollector collector = new DatagramCollector();
+	chunker.write(collector, ByteBuffer.wrap(payload), DATAGRAM_SIZE);
+	return collector.datagrams;
+    }
+
+    private static byte[] payload(int length) {
+	byte[] payload = new byte[length];
+	new Random(length).nextBytes(payload);
+	return payload;
+    }
+
+    /**
+     * Keeps each gathering write as one datagram, like a datagram channel.
+     */
+    private static class DatagramCollector implements GatheringByteChannel {
+	final List<ByteBuffer> datagrams = new ArrayList<ByteBuffer>();
+
+	public long write(ByteBuffer[] srcs, int offset, int length) {
+	    int size = 0;
+	    for (int i = offset; i < offset + length; i++) {
+		size += srcs[i].remaining();
+	    }
+	    ByteBuffer datagram = ByteBuffer.allocate(size);
+	    for (int i = offset; i < offset + length; i++) {
+		datagram.put(srcs[i]);
+	    }
+	    datagram.flip();
+	    datagrams.add(datagram);
+	    return size;
+	}
+
+	public long write(ByteBuffer[] srcs) {
+	    return write(srcs, 0, srcs.length);
+	}
+
+	public int write(ByteBuffer src) {
+	    return (int) write(new ByteBuffer[] { src });
+	}
+
+	public boolean isOpen() {
+	    return true;
+	}
+
+	public void close() {
+	}
+    }
+}
@@ -0,0 +1,104 @@
+package com.vivareal.logger.appender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Test;
+
+public class LogstashEventDecoderTest {
+    @After
+    public void tearDown() {
+	MDC.remove("request_id");
+    }
+
+    @Test
+    public void decodesSeveralSmileEvents() throws Exception {
+	LogstashJsonEncoder encoder = encoder(LogstashJsonEncoder.SMILE);
+	MDC.put("request_id", "r-42");
+	encoder.encode(event(Level.INFO, "first é中😀", null));
+	MDC.remove("request_id");
+	encoder.encode(event(Level.WARN, "second", null));
+	encoder.encode(event(Level.ERROR, "third", new IllegalStateException(
+		"boom")));
+
+	List<Map<String, Object>> events = decode(LogstashJsonEncoder.SMILE,
+		encoder);
+	assertEquals(3, events.size());
+	assertEvent(events.get(0), "INFO", "first é中😀");
+	assertEquals("r-42", events.get(0).get("request_id"));
+	assertEvent(events.get(1), "WARN", "second");
+	assertEvent(events.get(2), "ERROR", "third");
+	String stackTrace = (String) events.get(2).get("stack_trace");
+	assertTrue(stackTrace.startsWith(IllegalStateException.class.getName()
+		+ ": boom\n"));
+	assertEquals(16,
+		((String) events.get(2).get("stack_fingerprint")).length());
+    }
+
+    @Test
+    public void smileAndJsonDecodeToTheSameEvent() throws Exception {
+	LoggingEvent event = event(Level.INFO, "same \"quoted\" value\n",
+		new RuntimeException("x"));
+	LogstashJsonEncoder smile = encoder(LogstashJsonEncoder.SMILE);
+	smile.encode(event);
+	LogstashJsonEncoder json = encoder(LogstashJsonEncoder.JSON);
+	json.encode(event);
+
+	assertEquals(decode(LogstashJsonEncoder.JSON, json),
+		decode(LogstashJsonEncoder.SMILE, smile));
+    }
+
+    @Test
+    public void smileIsSmallerThanJson() throws Exception {
+	LoggingEvent event = event(Level.INFO, "a message of some length", null);
+	LogstashJsonEncoder smile = encoder(LogstashJsonEncoder.SMILE);
+	smile.encode(event);
+	LogstashJsonEncoder json = encoder(LogstashJsonEncoder.JSON);
+	json.encode(event);
+	assertTrue(smile.getOutput().size() < json.getOutput().size());
+    }
+
+    private static void assertEvent(Map<String, Object> event,
+	    String priority, String message) {
+	assertEquals("1", event.get("@version"));
+	assertEquals("udp", event.get("type"));
+	assertEquals("app", event.get("application"));
+	assertEquals("test", event.get("logger_name"));
+	assertEquals(priority, event.get("priority"));
+	assertEquals(message, event.get("message"));
+    }
+
+    private static LogstashJsonEncoder encoder(String format) {
+	LogstashJsonEncoder encoder = new LogstashJsonEncoder("udp",
+		new ByteBufferOutputStream(512, false));
+	encoder.setApplication("app");
+	encoder.setFormat(format);
+	encoder.setPropertyFields(true, null, null);
+	return encoder;
+    }
+
+    private static LoggingEvent event(Level level, String message,
+	    Throwable error) {
+	return new LoggingEvent(Logger.class.getName(),
+		Logger.getLogger("test"), level, message, error);
+    }
+
+    private static List<Map<String, Object>> decode(String format,
+	    LogstashJsonEncoder encoder) throws Exception {
+	ByteBuffer buffer = encoder.getOutput().getBuffer();
+	byte[] data = Arrays.copyOf(buffer.array(), buffer.position() + 16);
+	// the decoder must stop at the length, not at the end of the array
+	return new LogstashEventDecoder(format).decode(data, 0,
+		buffer.position());
+    }
+}
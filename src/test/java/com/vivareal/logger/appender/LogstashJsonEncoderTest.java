@@ -0,0 +1,179 @@
+package com.vivareal.logger.appender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class LogstashJsonEncoderTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void shortEventIsNotTruncated() throws Exception {
+	Map<String, Object> event = decode(encode(1024, event("  hello  ",
+		null)));
+	assertEquals("hello", event.get("message"));
+	assertFalse(event.containsKey("truncated"));
+    }
+
+    @Test
+    public void longMessageIsCutToTheBudget() throws Exception {
+	String message = repeat("x", 10000);
+	byte[] encoded = encode(1024, event(message, null));
+	assertTrue(encoded.length <= 1024);
+	Map<String, Object> event = decode(encoded);
+	assertTruncated(message, (String) event.get("message"));
+	assertEquals(Boolean.TRUE, event.get("truncated"));
+    }
+
+    @Test
+    public void multibyteCharactersAreNotSplit() throws Exception {
+	String message = repeat("é中", 3000);
+	// every cut position modulo the character widths
+	for (int budget = 600; budget < 606; budget++) {
+	    byte[] encoded = encode(budget, event(message, null));
+	    assertTrue(encoded.length <= budget);
+	    Map<String, Object> event = decode(encoded);
+	    assertTruncated(message, (String) event.get("message"));
+	    assertEquals(Boolean.TRUE, event.get("truncated"));
+	}
+    }
+
+    @Test
+    public void surrogatePairsAreNotSplit() throws Exception {
+	String message = "a" + repeat("😀", 3000);
+	// each half of a pair is written as a six byte escape
+	for (int budget = 600; budget < 612; budget++) {
+	    byte[] encoded = encode(budget, event(message, null));
+	    assertTrue(encoded.length <= budget);
+	    String decoded = (String) decode(encoded).get("message");
+	    assertTruncated(message, decoded);
+	    String kept = decoded.substring(0, decoded.length() - 3);
+	    assertEquals(0, (kept.length() - 1) % 2);
+	    assertFalse(Character.isHighSurrogate(kept.charAt(kept.length() - 1)));
+	}
+    }
+
+    @Test
+    public void stackTraceIsCutToWhatIsLeft() throws Exception {
+	String message = repeat("m", 400);
+	Exception error = new IllegalStateException(repeat("s", 10000));
+	byte[] encoded = encode(1024, event(message, error));
+	assertTrue(encoded.length <= 1024);
+	Map<String, Object> event = decode(encoded);
+	assertEquals(message, event.get("message"));
+	String stackTrace = (String) event.get("stack_trace");
+	assertTrue(stackTrace.startsWith(IllegalStateException.class.getName()
+		+ ": sss"));
+	assertTrue(stackTrace.endsWith("..."));
+	assertEquals(Boolean.TRUE, event.get("truncated"));
+    }
+
+    @Test
+    public void propertiesDoNotCrowdOutTheMessage() throws Exception {
+	String message = repeat("m", 1000);
+	LoggingEvent logged = event(message, null);
+	for (int i = 0; i < 10; i++) {
+	    logged.setProperty("key" + i, repeat("v", 1000));
+	}
+	LogstashJsonEncoder encoder = encoder(4096);
+	encoder.setPropertyFields(true, null, null);
+	byte[] encoded = encode(encoder, logged);
+	assertTrue(encoded.length <= 4096);
+	Map<String, Object> event = decode(encoded);
+	assertEquals(message, event.get("message"));
+
+	int propertyBytes = 0;
+	for (int i = 0; i < 10; i++) {
+	    String value = (String) event.get("key" + i);
+	    if (value != null) {
+		propertyBytes += "key".length() + 1 + value.length() + 6;
+	    }
+	}
+	assertTrue(propertyBytes > 0);
+	assertTrue(propertyBytes <= LogstashJsonEncoder.MAX_PROPERTIES_SIZE);
+	assertEquals(Boolean.TRUE, event.get("truncated"));
+    }
+
+    @Test
+    public void cutIndexCountsEscapedUtf8Bytes() {
+	String value = "a\"é中😀";
+	// a: 1, \": 2, e acute: 2, han: 3, surrogate pair: 12
+	assertEquals(0, LogstashJsonEncoder.cutIndex(value, 0, 6, 0));
+	assertEquals(1, LogstashJsonEncoder.cutIndex(value, 0, 6, 2));
+	assertEquals(2, LogstashJsonEncoder.cutIndex(value, 0, 6, 3));
+	assertEquals(3, LogstashJsonEncoder.cutIndex(value, 0, 6, 7));
+	assertEquals(4, LogstashJsonEncoder.cutIndex(value, 0, 6, 8));
+	assertEquals(4, LogstashJsonEncoder.cutIndex(value, 0, 6, 19));
+	assertEquals(6, LogstashJsonEncoder.cutIndex(value, 0, 6, 20));
+    }
+
+    private static void assertTruncated(String original, String truncated) {
+	assertTrue(truncated.endsWith("..."));
+	String kept = truncated.substring(0, truncated.length() - 3);
+	assertTrue(kept.length() > 0);
+	assertTrue(original.startsWith(kept));
+    }
+
+    private static LoggingEvent event(String message, Throwable error) {
+	return new LoggingEvent(Logger.class.getName(),
+		Logger.getLogger("test"), Level.INFO, message, error);
+    }
+
+    private static LogstashJsonEncoder encoder(int maxEventSize) {
+	LogstashJsonEncoder encoder = new LogstashJsonEncoder("udp",
+		new ByteBufferOutputStream(512, false));
+	encoder.setApplication("app");
+	encoder.setMaxEventSize(maxEventSize);
+	return encoder;
+    }
+
+    private static byte[] encode(int maxEventSize, LoggingEvent event)
+	    throws Exception {
+	return encode(encoder(maxEventSize), event);
+    }
+
+    private static byte[] encode(LogstashJsonEncoder encoder,
+	    LoggingEvent event) throws Exception {
+	encoder.encode(event);
+	ByteBuffer buffer = encoder.getOutput().getBuffer();
+	byte[] encoded = Arrays.copyOf(buffer.array(), buffer.position());
+	assertValidUtf8(encoded);
+	return encoded;
+    }
+
+    private static void assertValidUtf8(byte[] encoded)
+	    throws CharacterCodingException {
+	UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+		.onUnmappableCharacter(CodingErrorAction.REPORT)
+		.decode(ByteBuffer.wrap(encoded));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> decode(byte[] encoded) throws Exception {
+	return mapper.readValue(encoded, Map.class);
+    }
+
+    private static String repeat(String value, int count) {
+	StringBuilder builder = new StringBuilder(value.length() * count);
+	for (int i = 0; i < count; i++) {
+	    builder.append(value);
+	}
+	return builder.toString();
+    }
+}
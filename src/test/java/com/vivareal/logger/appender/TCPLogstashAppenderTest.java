@@ -0,0 +1,212 @@
+package com.vivareal.logger.appender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class TCPLogstashAppenderTest {
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private ServerSocket server;
+
+    private TCPLogstashAppender appender;
+
+    @Before
+    public void setUp() throws IOException {
+	server = listen(0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+	if (appender != null) {
+	    appender.close();
+	}
+	server.close();
+    }
+
+    @Test
+    public void writesOneEventPerLine() throws Exception {
+	appender = start(server.getLocalPort(), 10);
+	log("first");
+	log("second\nspans two lines");
+	log("third");
+
+	BufferedReader reader = accept(server);
+	assertEquals("first", message(reader.readLine()));
+	assertEquals("second\nspans two lines", message(reader.readLine()));
+	assertEquals("third", message(reader.readLine()));
+    }
+
+    @Test
+    public void batchesEventsUntilLingerTime() throws Exception {
+	appender = start(server.getLocalPort(), 60000);
+	awaitConnection();
+	BufferedReader reader = accept(server);
+	log("first");
+	log("second");
+	try {
+	    String line = reader.readLine();
+	    fail("sent before the batch was full: " + line);
+	} catch (SocketTimeoutException e) {
+	    // still buffered
+	}
+
+	appender.close();
+	assertEquals("first", message(reader.readLine()));
+	assertEquals("second", message(reader.readLine()));
+    }
+
+    @Test
+    public void reconnectsAfterTheServerDropsTheConnection() throws Exception {
+	appender = start(server.getLocalPort(), 10);
+	log("before");
+	Socket first = server.accept();
+	BufferedReader reader = reader(first);
+	assertEquals("before", message(reader.readLine()));
+	first.close();
+
+	// the first writes after the drop only reveal it
+	reader = null;
+	long deadline = System.currentTimeMillis() + 10000;
+	server.setSoTimeout(50);
+	for (int i = 0; reader == null && System.currentTimeMillis() < deadline; i++) {
+	    log("after " + i);
+	    try {
+		reader = reader(server.accept());
+	    } catch (SocketTimeoutException e) {
+		// not reconnected yet
+	    }
+	}
+	assertNotNull("did not reconnect", reader);
+	log("reconnected");
+	String line;
+	do {
+	    line = reader.readLine();
+	    assertNotNull(line);
+	} while (!"reconnected".equals(message(line)));
+    }
+
+    @Test
+    public void dropsEventsWhenTheBufferIsFullIfConfigured() throws Exception {
+	int port = server.getLocalPort();
+	server.close();
+	appender = new TCPLogstashAppender();
+	appender.setRemoteHost("127.0.0.1");
+	appender.setPort(port);
+	appender.setBufferSize(1024);
+	appender.setOverflow(TCPLogstashAppender.DROP);
+	appender.setWriteTimeout(10);
+	appender.activateOptions();
+
+	for (int i = 0; i < 20; i++) {
+	    log("event " + i);
+	}
+	assertTrue(appender.getDroppedCount() > 0);
+	server = listen(port);
+    }
+
+    @Test
+    public void blocksWhenTheBufferIsFullByDefault() throws Exception {
+	int port = server.getLocalPort();
+	server.close();
+	appender = new TCPLogstashAppender();
+	appender.setRemoteHost("127.0.0.1");
+	appender.setPort(port);
+	appender.setBufferSize(1024);
+	appender.setReconnectionDelay(10);
+	appender.setMaxReconnectionDelay(50);
+	appender.setLingerTime(10);
+	appender.activateOptions();
+
+	final int count = 50;
+	Thread logging = new Thread() {
+	    public void run() {
+		for (int i = 0; i < count; i++) {
+		    log("event " + i);
+		}
+	    }
+	};
+	logging.start();
+	logging.join(500);
+	assertTrue("did not wait for room", logging.isAlive());
+
+	server = listen(port);
+	BufferedReader reader = accept(server);
+	for (int i = 0; i < count; i++) {
+	    assertEquals("event " + i, message(reader.readLine()));
+	}
+	logging.join(10000);
+	assertEquals(0, appender.getDroppedCount());
+    }
+
+    private TCPLogstashAppender start(int port, int lingerTime) {
+	TCPLogstashAppender appender = new TCPLogstashAppender();
+	appender.setRemoteHost("127.0.0.1");
+	appender.setPort(port);
+	appender.setLingerTime(lingerTime);
+	appender.setReconnectionDelay(10);
+	appender.setMaxReconnectionDelay(100);
+	appender.activateOptions();
+	return appender;
+    }
+
+    private void awaitConnection() throws InterruptedException {
+	long deadline = System.currentTimeMillis() + 10000;
+	while (appender.channel == null
+		&& System.currentTimeMillis() < deadline) {
+	    Thread.sleep(10);
+	}
+	assertNotNull("did not connect", appender.channel);
+    }
+
+    private void log(String message) {
+	appender.doAppend(new LoggingEvent(Logger.class.getName(), Logger
+		.getLogger("test"), Level.INFO, message, null));
+    }
+
+    private String message(String line) throws IOException {
+	assertNotNull(line);
+	JsonNode event = mapper.readTree(line);
+	return event.get("message").asText();
+    }
+
+    private static ServerSocket listen(int port) throws IOException {
+	ServerSocket server = new ServerSocket();
+	server.setReuseAddress(true);
+	server.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"),
+		port));
+	server.setSoTimeout(10000);
+	return server;
+    }
+
+    private static BufferedReader accept(ServerSocket server)
+	    throws IOException {
+	return reader(server.accept());
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+	socket.setSoTimeout(500);
+	return new BufferedReader(new InputStreamReader(
+		socket.getInputStream(), "UTF-8"));
+    }
+}
@@ -0,0 +1,171 @@
+package com.vivareal.logger.appender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TimeSizeRollingFileAppenderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String logRootPath;
+
+    private File dir;
+
+    private CoarseClock clock;
+
+    @Before
+    public void setUp() {
+	logRootPath = TimeSizeRollingFileAppender.getLogRootPath();
+	dir = folder.getRoot();
+	TimeSizeRollingFileAppender.setLogRootPath(dir.getPath());
+	clock = new CoarseClock();
+    }
+
+    @After
+    public void tearDown() {
+	TimeSizeRollingFileAppender.setLogRootPath(logRootPath);
+    }
+
+    @Test
+    public void timeRolloverPendingAtCloseIsCarriedOutOnRestart()
+	    throws Exception {
+	clock.setTime(time(2020, Calendar.MARCH, 1, 12));
+	TimeSizeRollingFileAppender appender = start();
+	appender.setMaximumFileSize(1);
+	log(appender, "early");
+	log(appender, "late"); // rolls "early" over for size
+	appender.setMaximumFileSize(1024);
+
+	// keep the archiver busy so the time rollover is still queued on close
+	final CountDownLatch hold = new CountDownLatch(1);
+	appender.archiver.add(new Runnable() {
+	    public void run() {
+		try {
+		    hold.await();
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		}
+	    }
+	});
+	clock.setTime(time(2020, Calendar.MARCH, 2, 0));
+	log(appender, "next"); // rolls "late" over for time
+	appender.close();
+
+	assertEquals(1, dir.list(new SuffixFilter(".time.2020-03-01"
+		+ TimeSizeRollingFileAppender.ROLLING_SUFFIX)).length);
+
+	appender = start();
+	awaitArchiver(appender);
+	log(appender, "again");
+	appender.close();
+
+	assertEquals("late\n", read("app.log.2020-03-01.bak"));
+	assertEquals("early\n", read("app.log.2020-03-01.1.bak"));
+	assertEquals("next\nagain\n", read("app.log"));
+	assertFalse(new File(dir, "app.log.1").exists());
+	assertEquals(0, dir.list(new SuffixFilter(
+		TimeSizeRollingFileAppender.ROLLING_SUFFIX)).length);
+    }
+
+    @Test
+    public void sizeRolloverPendingAtCloseIsCarriedOutOnRestart()
+	    throws Exception {
+	clock.setTime(time(2020, Calendar.MARCH, 1, 12));
+	TimeSizeRollingFileAppender appender = start();
+	final CountDownLatch hold = new CountDownLatch(1);
+	appender.archiver.add(new Runnable() {
+	    public void run() {
+		try {
+		    hold.await();
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		}
+	    }
+	});
+	appender.setMaximumFileSize(1);
+	log(appender, "first");
+	log(appender, "second"); // rolls "first" over for size
+	appender.close();
+
+	appender = start();
+	awaitArchiver(appender);
+	appender.close();
+
+	assertEquals("first\n", read("app.log.1"));
+	assertEquals("second\n", read("app.log"));
+	assertTrue(dir.list(new SuffixFilter(
+		TimeSizeRollingFileAppender.ROLLING_SUFFIX)).length == 0);
+    }
+
+    private TimeSizeRollingFileAppender start() {
+	TimeSizeRollingFileAppender appender = new TimeSizeRollingFileAppender();
+	appender.setName("test");
+	appender.setLayout(new PatternLayout("%m%n"));
+	appender.setFile("app.log");
+	appender.setMaxBackupIndex(1);
+	appender.clock = clock;
+	appender.activateOptions();
+	return appender;
+    }
+
+    private static void log(TimeSizeRollingFileAppender appender,
+	    String message) {
+	appender.doAppend(new LoggingEvent(Logger.class.getName(), Logger
+		.getLogger("test"), Level.INFO, message, null));
+    }
+
+    /**
+     * Waits until the archiver has carried out every task queued so far.
+     */
+    private static void awaitArchiver(TimeSizeRollingFileAppender appender)
+	    throws InterruptedException {
+	final CountDownLatch done = new CountDownLatch(1);
+	appender.archiver.add(new Runnable() {
+	    public void run() {
+		done.countDown();
+	    }
+	});
+	assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    private String read(String name) throws IOException {
+	return new String(Files.readAllBytes(new File(dir, name).toPath()),
+		Charset.forName("UTF-8"));
+    }
+
+    private static long time(int year, int month, int day, int hour) {
+	return new GregorianCalendar(year, month, day, hour, 0).getTimeInMillis();
+    }
+
+    private static class SuffixFilter implements java.io.FilenameFilter {
+	private final String suffix;
+
+	SuffixFilter(String suffix) {
+	    this.suffix = suffix;
+	}
+
+	public boolean accept(File dir, String name) {
+	    return name.endsWith(suffix);
+	}
+    }
+}